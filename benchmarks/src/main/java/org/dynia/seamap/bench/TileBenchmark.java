@@ -0,0 +1,130 @@
+package org.dynia.seamap.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.dynia.seamap.downloader.DecodedTileCache;
+import org.dynia.seamap.downloader.Downloader;
+import org.dynia.seamap.downloader.Pane;
+import org.dynia.seamap.downloader.PngTileDecoder;
+import org.dynia.seamap.downloader.SlippyTile;
+import org.dynia.seamap.downloader.TileBandRaster;
+import org.dynia.seamap.downloader.TileGrid;
+import org.dynia.seamap.downloader.TileStore;
+import org.dynia.seamap.slipp.PaletteLookup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Tile level hot paths: decoding and composing a tile from its layers, composing a whole pane band by band 
+ * and the tile number / bounding box math.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileBenchmark {
+
+	private static final int ZOOM = 14;
+	private static final int X = 8700;
+	private static final int Y = 5400;
+
+	/** pane is grid x grid tiles */
+	@Param({ "2", "4", "8" })
+	public int grid;
+
+	/** share decoded images of tiles with identical content */
+	@Param({ "true", "false" })
+	public boolean decodeCache;
+
+	private TileGrid tileGrid;
+	private SlippyTile tile;
+	private Pane pane;
+	private byte[] band;
+	private PaletteLookup palette;
+
+	private ByteBuffer basicPng;
+	private ByteBuffer seaMarkPng;
+	private int[] pixels = new int[256*256];
+
+	private double lat = 52.0;
+	private double lon = 8.6;
+
+	@Setup
+	public void setup() throws IOException {
+		DecodedTileCache.setMaxBytes(decodeCache ? 64L << 20 : 0);
+		TileStore store = TileFixtures.createStore(ZOOM, X, Y, grid, grid);
+		tileGrid = new TileGrid(store, ZOOM, X, Y, X+grid-1, Y+grid-1, ZOOM);
+		tile = tileGrid.get(ZOOM, X, Y);
+		pane = new Pane("bench", ZOOM, X, Y, X+grid-1, Y+grid-1);
+		band = new byte[pane.getWidth() * 256];
+		palette = PaletteLookup.forPalette(TileFixtures.referencePalette(), null);
+		basicPng = ByteBuffer.wrap(TileFixtures.basicTile(1));
+		seaMarkPng = ByteBuffer.wrap(TileFixtures.seaMarkTile(1, false));
+	}
+
+	/** decode both layers of one tile and draw the overlay onto the map */
+	@Benchmark
+	public BufferedImage composeTile() throws IOException {
+		return tile.getFlattened();
+	}
+
+	/** decode an indexed map tile and an RGBA sea mark tile with ImageIO (baseline) */
+	@Benchmark
+	public void decodeImageIO(Blackhole bh) throws IOException {
+		bh.consume(ImageIO.read(new ByteArrayInputStream(basicPng.array())));
+		bh.consume(ImageIO.read(new ByteArrayInputStream(seaMarkPng.array())));
+	}
+
+	/** decode the same tiles into a reused pixel array */
+	@Benchmark
+	public void decodeTileDecoder(Blackhole bh) throws IOException {
+		PngTileDecoder decoder = PngTileDecoder.get();
+		bh.consume(decoder.decode(basicPng, pixels));
+		bh.consume(decoder.decode(seaMarkPng, pixels));
+	}
+
+	/** read the whole pane as palette indices the way the KAP encoder does */
+	@Benchmark
+	public void composePane(Blackhole bh) throws IOException {
+		TileBandRaster raster = new TileBandRaster(tileGrid, ZOOM, pane);
+		for (int y=0; y<raster.getHeight(); y+=256) {
+			raster.readRows(y, 256, band, palette);
+			bh.consume(band);
+		}
+	}
+
+	@Benchmark
+	public int tileNumber() {
+		return Downloader.getXTileNumber(lat, lon, ZOOM) ^ Downloader.getYTileNumber(lat, lon, ZOOM);
+	}
+
+	@Benchmark
+	public Object boundingBox() {
+		return tile.tile2boundingBox(X, Y, ZOOM);
+	}
+
+	/** bounds from the tables shared by the tiles of a row / column */
+	@Benchmark
+	public double gridBounds() {
+		return tileGrid.getNorth(ZOOM, Y) + tileGrid.getSouth(ZOOM, Y) + tileGrid.getWest(ZOOM, X) + tileGrid.getEast(ZOOM, X);
+	}
+
+}
@@ -0,0 +1,251 @@
+package org.dynia.seamap.bench;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+
+import org.dynia.seamap.downloader.SlippyTile;
+import org.dynia.seamap.downloader.TileLayer;
+import org.dynia.seamap.downloader.TileStore;
+
+/**
+ * Synthetic tiles resembling openstreetmap.org map tiles (8 bit palette PNG with water, land, 
+ * forest and roads) and openseamap.org overlays (mostly transparent RGBA PNG with few marks). 
+ * Tiles are generated from a seed, so all benchmarks run offline and repeatable.
+ */
+public class TileFixtures {
+
+	private static final Color WATER = new Color(170, 211, 223);
+	private static final Color LAND = new Color(242, 239, 233);
+	private static final Color FOREST = new Color(173, 209, 158);
+	private static final Color ROAD = new Color(255, 255, 255);
+	private static final Color MAJOR_ROAD = new Color(247, 250, 191);
+	private static final Color BUILDING = new Color(217, 208, 201);
+	private static final Color LABEL = new Color(0, 0, 0);
+
+	/**
+	 * @return PNG bytes of a map tile
+	 */
+	public static byte[] basicTile(long seed) throws IOException {
+		Random random = new Random(seed);
+
+		// draw antialiased, then reduce to 8 bit palette like the tile server does
+		BufferedImage rgb = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = rgb.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setColor(LAND);
+		g.fillRect(0, 0, 256, 256);
+		g.setColor(WATER);
+		g.fillOval(random.nextInt(128) - 64, random.nextInt(128) - 64, 128 + random.nextInt(256), 128 + random.nextInt(256));
+		g.setColor(FOREST);
+		for (int i=0; i<3; i++) {
+			g.fillPolygon(polygon(random, 'x'), polygon(random, 'y'), 6);
+		}
+		g.setColor(BUILDING);
+		for (int i=0; i<10; i++) {
+			g.fillRect(random.nextInt(256), random.nextInt(256), 4 + random.nextInt(12), 4 + random.nextInt(12));
+		}
+		g.setStroke(new BasicStroke(5));
+		g.setColor(MAJOR_ROAD);
+		g.drawLine(0, random.nextInt(256), 256, random.nextInt(256));
+		g.setStroke(new BasicStroke(2));
+		g.setColor(ROAD);
+		for (int i=0; i<4; i++) {
+			g.drawLine(random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256));
+		}
+		g.setColor(LABEL);
+		g.drawString("Lake " + seed, random.nextInt(180), 20 + random.nextInt(220));
+		g.dispose();
+
+		BufferedImage indexed = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_INDEXED, osmColorModel());
+		Graphics2D gi = indexed.createGraphics();
+		gi.drawImage(rgb, 0, 0, null);
+		gi.dispose();
+		return png(indexed);
+	}
+
+	/**
+	 * @return PNG bytes of a sea mark overlay (fully transparent if empty)
+	 */
+	public static byte[] seaMarkTile(long seed, boolean empty) throws IOException {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+		if (!empty) {
+			Graphics2D g = image.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			for (int i=0; i<4; i++) {
+				int x = random.nextInt(240);
+				int y = random.nextInt(240);
+				g.setColor(new Color(200, 0, 0, 220));
+				g.fillOval(x, y, 12, 12);
+				g.setColor(new Color(0, 120, 0, 160));
+				g.fillRect(x + 4, y - 10, 4, 10);
+			}
+			g.dispose();
+		}
+		return png(image);
+	}
+
+	/**
+	 * Create store with tiles [x, x+width) x [y, y+height) of given zoom; every third overlay is not empty.
+	 */
+	public static TileStore createStore(int zoom, int x, int y, int width, int height) throws IOException {
+		MemoryTileStore store = new MemoryTileStore();
+		for (int a=x; a<x+width; a++) {
+			for (int b=y; b<y+height; b++) {
+				long seed = SlippyTile.packKey(zoom, a, b);
+				store.write(TileLayer.BASIC, zoom, a, b, new ByteArrayInputStream(basicTile(seed)));
+				store.write(TileLayer.SEA, zoom, a, b, new ByteArrayInputStream(seaMarkTile(seed, (a + b) % 3 != 0)));
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * @return palette of reference_palette.txt
+	 */
+	public static List<Color> referencePalette() throws IOException {
+		List<Color> palette = new ArrayList<>();
+		InputStream in = TileFixtures.class.getResourceAsStream("/reference_palette.txt");
+		if (in == null) {
+			throw new IOException("reference_palette.txt not on classpath");
+		}
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(in, "US-ASCII"))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.startsWith("RGB/")) {
+					StringTokenizer st = new StringTokenizer(line.substring(4), ",");
+					st.nextToken();
+					palette.add(new Color(Integer.parseInt(st.nextToken()), Integer.parseInt(st.nextToken()), Integer.parseInt(st.nextToken())));
+				}
+			}
+		}
+		return palette;
+	}
+
+	private static int[] polygon(Random random, char axis) {
+		int[] p = new int[6];
+		for (int i=0; i<p.length; i++) {
+			p[i] = random.nextInt(300) - 22;
+		}
+		return p;
+	}
+
+	private static IndexColorModel osmColorModel() {
+		Color[] colors = { WATER, LAND, FOREST, ROAD, MAJOR_ROAD, BUILDING, LABEL };
+		// base colors plus blends between them for antialiased edges
+		List<Color> entries = new ArrayList<>();
+		for (Color c : colors) {
+			entries.add(c);
+		}
+		for (int i=0; i<colors.length && entries.size() < 256; i++) {
+			for (int j=i+1; j<colors.length && entries.size() < 256; j++) {
+				for (int k=1; k<8 && entries.size() < 256; k++) {
+					Color a = colors[i];
+					Color b = colors[j];
+					entries.add(new Color((a.getRed()*k + b.getRed()*(8-k)) / 8, (a.getGreen()*k + b.getGreen()*(8-k)) / 8, (a.getBlue()*k + b.getBlue()*(8-k)) / 8));
+				}
+			}
+		}
+		byte[] r = new byte[entries.size()];
+		byte[] g = new byte[entries.size()];
+		byte[] b = new byte[entries.size()];
+		for (int i=0; i<entries.size(); i++) {
+			r[i] = (byte) entries.get(i).getRed();
+			g[i] = (byte) entries.get(i).getGreen();
+			b[i] = (byte) entries.get(i).getBlue();
+		}
+		return new IndexColorModel(8, entries.size(), r, g, b);
+	}
+
+	private static byte[] png(BufferedImage image) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ImageIO.write(image, "PNG", bos);
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Tile store keeping all tiles in memory.
+	 */
+	static class MemoryTileStore implements TileStore {
+
+		private Map<String, byte[]> tiles = new ConcurrentHashMap<>();
+
+		private static String key(TileLayer layer, int zoom, int x, int y) {
+			return layer + "/" + SlippyTile.getKey(zoom, x, y);
+		}
+
+		@Override
+		public boolean contains(TileLayer layer, int zoom, int x, int y) {
+			return tiles.containsKey(key(layer, zoom, x, y));
+		}
+
+		@Override
+		public long length(TileLayer layer, int zoom, int x, int y) {
+			byte[] data = tiles.get(key(layer, zoom, x, y));
+			return data == null ? -1 : data.length;
+		}
+
+		@Override
+		public long lastModified(TileLayer layer, int zoom, int x, int y) {
+			return 0;
+		}
+
+		@Override
+		public void scan(TileLayer layer, int zoom, int x1, int y1, int x2, int y2, Visitor visitor) throws IOException {
+			for (int x=x1; x<=x2; x++) {
+				for (int y=y1; y<=y2; y++) {
+					byte[] data = tiles.get(key(layer, zoom, x, y));
+					if (data != null) {
+						visitor.visit(x, y, data.length);
+					}
+				}
+			}
+		}
+
+		@Override
+		public ByteBuffer read(TileLayer layer, int zoom, int x, int y) {
+			byte[] data = tiles.get(key(layer, zoom, x, y));
+			return data == null ? null : ByteBuffer.wrap(data);
+		}
+
+		@Override
+		public void write(TileLayer layer, int zoom, int x, int y, InputStream data) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = data.read(buffer)) != -1) {
+				bos.write(buffer, 0, n);
+			}
+			tiles.put(key(layer, zoom, x, y), bos.toByteArray());
+		}
+
+		@Override
+		public void remove(TileLayer layer, int zoom, int x, int y) {
+			tiles.remove(key(layer, zoom, x, y));
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
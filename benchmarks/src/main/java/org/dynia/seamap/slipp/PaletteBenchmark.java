@@ -0,0 +1,119 @@
+package org.dynia.seamap.slipp;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dynia.seamap.bench.TileFixtures;
+import org.dynia.seamap.downloader.SlippyTile;
+import org.dynia.seamap.downloader.TileStore;
+import org.dynia.seamap.slipp.ImageCompress.RowBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Palette reduction and row compression on one band (256 rows) of composed tiles.
+ * 
+ * {@link #reduceLinear()} is the original per pixel search through the palette (colors 100 or 
+ * more away from every entry get index 1), kept as baseline for {@link #reduceLookup()} which 
+ * uses the table of the same rule.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaletteBenchmark {
+
+	private static final int TILES = 4;
+	private static final int WIDTH = 256 * TILES;
+	private static final int ROWS = 256;
+
+	private List<Color> palette;
+	private PaletteLookup lookup;
+	private ImageCompress compress;
+	private int[] pixels;
+	private byte[] indices;
+
+	@Setup
+	public void setup() throws IOException {
+		palette = TileFixtures.referencePalette();
+		lookup = PaletteLookup.forPalette(palette, null);
+
+		TileStore store = TileFixtures.createStore(14, 0, 0, TILES, 1);
+		BufferedImage band = new BufferedImage(WIDTH, ROWS, BufferedImage.TYPE_INT_ARGB);
+		for (int a=0; a<TILES; a++) {
+			new SlippyTile(store, a, 0, 14).draw(band.getGraphics(), a*256, 0);
+		}
+		pixels = band.getRGB(0, 0, WIDTH, ROWS, null, 0, WIDTH);
+		indices = new byte[WIDTH * ROWS];
+		lookup.indexOf(pixels, 0, WIDTH, indices, 0, WIDTH, WIDTH, ROWS);
+		compress = new ImageCompress(new ImageRasterSource(band), lookup, null);
+	}
+
+	@Benchmark
+	public int reduceLookup() {
+		int sum = 0;
+		for (int rgb : pixels) {
+			sum += lookup.indexOf(rgb);
+		}
+		return sum;
+	}
+
+	/** map the band tile by tile with the per tile color cache */
+	@Benchmark
+	public byte[] reduceTiles() {
+		for (int a=0; a<TILES; a++) {
+			lookup.indexOf(pixels, a*256, WIDTH, indices, a*256, WIDTH, 256, ROWS);
+		}
+		return indices;
+	}
+
+	@Benchmark
+	public int reduceLinear() {
+		int sum = 0;
+		for (int rgb : pixels) {
+			sum += linearSearch(rgb);
+		}
+		return sum;
+	}
+
+	/** compress all rows of the band into one buffer */
+	@Benchmark
+	public byte[] compressRows() {
+		RowBuffer buffer = new RowBuffer(ROWS, WIDTH);
+		for (int r=0; r<ROWS; r++) {
+			compress.compressRow(r, indices, r * WIDTH, buffer);
+		}
+		return buffer.data;
+	}
+
+	private int linearSearch(int rgb) {
+		int red = (rgb >> 16) & 0xFF;
+		int green = (rgb >> 8) & 0xFF;
+		int blue = rgb & 0xFF;
+		int idx = 1;
+		double minDist = 100;
+		for (int i=0; i<palette.size(); i++) {
+			Color c = palette.get(i);
+			double dist = Math.sqrt(Math.pow((c.getRed()-red),2) + Math.pow((c.getGreen()-green),2) + Math.pow((c.getBlue()-blue),2));
+			if (dist < minDist) {
+				minDist = dist;
+				idx = i+1;
+			}
+		}
+		return idx;
+	}
+
+}
@@ -0,0 +1,125 @@
+package org.dynia.seamap.downloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.dynia.seamap.bench.TileFixtures;
+import org.junit.Test;
+
+/**
+ * The tile decoder must return the same ARGB pixels as ImageIO for every variant it accepts.
+ */
+public class PngTileDecoderTest {
+
+	@Test
+	public void mapTiles() throws IOException {
+		for (long seed = 0; seed < 5; seed++) {
+			assertDecodedLikeImageIO(TileFixtures.basicTile(seed));
+		}
+	}
+
+	@Test
+	public void seaMarkTiles() throws IOException {
+		for (long seed = 0; seed < 5; seed++) {
+			assertDecodedLikeImageIO(TileFixtures.seaMarkTile(seed, false));
+		}
+		assertDecodedLikeImageIO(TileFixtures.seaMarkTile(0, true));
+	}
+
+	@Test
+	public void rgb() throws IOException {
+		BufferedImage image = new BufferedImage(257, 131, BufferedImage.TYPE_INT_RGB);
+		fill(image, 1, false);
+		assertDecodedLikeImageIO(png(image));
+	}
+
+	@Test
+	public void rgba() throws IOException {
+		BufferedImage image = new BufferedImage(255, 129, BufferedImage.TYPE_INT_ARGB);
+		fill(image, 2, true);
+		assertDecodedLikeImageIO(png(image));
+	}
+
+	@Test
+	public void indexedWithTransparency() throws IOException {
+		for (int bits : new int[] { 1, 2, 4, 8 }) {
+			int size = 1 << bits;
+			byte[] r = new byte[size];
+			byte[] g = new byte[size];
+			byte[] b = new byte[size];
+			byte[] a = new byte[size];
+			Random random = new Random(bits);
+			random.nextBytes(r);
+			random.nextBytes(g);
+			random.nextBytes(b);
+			random.nextBytes(a);
+			a[0] = 0;
+			IndexColorModel model = new IndexColorModel(bits, size, r, g, b, a);
+			int type = bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY;
+			BufferedImage image = new BufferedImage(253, 67, type, model);
+			for (int y=0; y<image.getHeight(); y++) {
+				for (int x=0; x<image.getWidth(); x++) {
+					image.getRaster().setSample(x, y, 0, random.nextInt(size));
+				}
+			}
+			assertDecodedLikeImageIO(png(image));
+		}
+	}
+
+	@Test
+	public void reusesArray() throws IOException {
+		byte[] data = TileFixtures.basicTile(3);
+		int[] pixels = new int[256 * 256];
+		int[] decoded = PngTileDecoder.get().decode(ByteBuffer.wrap(data), pixels);
+		assertTrue(decoded == pixels);
+		assertArrayEquals(imageIO(data), decoded);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherFormats() throws IOException {
+		PngTileDecoder.read(ByteBuffer.wrap("GIF89a not a png".getBytes("US-ASCII")));
+	}
+
+	private static void assertDecodedLikeImageIO(byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		BufferedImage image = PngTileDecoder.read(buffer);
+		assertNotNull("Variant not decoded", image);
+		assertEquals(0, buffer.position());
+		assertArrayEquals(imageIO(data), PngTileDecoder.getPixels(image));
+	}
+
+	private static int[] imageIO(byte[] data) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+	}
+
+	private static void fill(BufferedImage image, long seed, boolean alpha) {
+		Random random = new Random(seed);
+		for (int y=0; y<image.getHeight(); y++) {
+			for (int x=0; x<image.getWidth(); x++) {
+				// runs of equal pixels and noise, to get all PNG filter types
+				int argb = (x / 7 + y) % 3 == 0 ? 0xFF336699 : random.nextInt();
+				image.setRGB(x, y, alpha ? argb : argb | 0xFF000000);
+			}
+		}
+	}
+
+	private static byte[] png(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+
+}
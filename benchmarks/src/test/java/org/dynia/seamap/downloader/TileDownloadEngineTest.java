@@ -0,0 +1,283 @@
+package org.dynia.seamap.downloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dynia.seamap.bench.TileFixtures;
+import org.dynia.seamap.stats.Stats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Downloads against a local {@link TileServerStub}: retries, empty sea marks, coalescing of
+ * concurrent downloads of the same tile and revalidation in refresh mode.
+ */
+public class TileDownloadEngineTest {
+
+	private TileServerStub server;
+	private File root;
+	private TileCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new TileServerStub();
+		root = Files.createTempDirectory("seamap-download").toFile();
+		cache = new TileCache(root.getPath() + "/", "directory");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cache.close();
+		server.close();
+		delete(root);
+	}
+
+	private Properties properties(boolean refresh) {
+		Properties prop = new Properties();
+		prop.setProperty("url.basic", server.url("basic"));
+		prop.setProperty("url.seamark", server.url("seamark"));
+		prop.setProperty("download.threads", "8");
+		prop.setProperty("download.perHost", "8");
+		prop.setProperty("download.perHost.max", "8");
+		prop.setProperty("download.retries", "2");
+		prop.setProperty("download.backoff", "1");
+		prop.setProperty("download.backoff.max", "10");
+		prop.setProperty("download.refresh", Boolean.toString(refresh));
+		return prop;
+	}
+
+	private void download(boolean refresh, SlippyTile... tiles) throws IOException {
+		TileDownloadEngine engine = new TileDownloadEngine(properties(refresh), cache);
+		try {
+			engine.download(Arrays.asList(tiles));
+		} finally {
+			engine.close();
+		}
+	}
+
+	private SlippyTile tile(int x, int y) {
+		return new SlippyTile(cache.getStore(), x, y, 12);
+	}
+
+	private byte[] stored(TileLayer layer, SlippyTile tile) throws IOException {
+		ByteBuffer data = cache.getStore().read(layer, tile.getZoom(), tile.getX(), tile.getY());
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void storesBothLayers() throws IOException {
+		SlippyTile tile = tile(2200, 1300);
+		byte[] basic = TileFixtures.basicTile(1);
+		byte[] seaMark = TileFixtures.seaMarkTile(1, false);
+		server.serve(TileServerStub.path("basic", tile), basic, null);
+		server.serve(TileServerStub.path("seamark", tile), seaMark, null);
+
+		download(false, tile);
+
+		assertArrayEquals(basic, stored(TileLayer.BASIC, tile));
+		assertArrayEquals(seaMark, stored(TileLayer.SEA, tile));
+		assertTrue(tile.isDownloaded());
+	}
+
+	@Test
+	public void storesEmptySeaMarks() throws IOException {
+		// no sea mark tile on the server
+		SlippyTile missing = tile(2200, 1300);
+		server.serve(TileServerStub.path("basic", missing), TileFixtures.basicTile(1), null);
+		// content known to be transparent
+		SlippyTile known = tile(2201, 1300);
+		byte[] transparent = TileFixtures.seaMarkTile(2, true);
+		cache.getEmptyOverlays().add(ByteBuffer.wrap(transparent));
+		server.serve(TileServerStub.path("basic", known), TileFixtures.basicTile(2), null);
+		server.serve(TileServerStub.path("seamark", known), transparent, null);
+
+		download(false, missing, known);
+
+		assertEquals(0, stored(TileLayer.SEA, missing).length);
+		assertEquals(0, stored(TileLayer.SEA, known).length);
+		assertTrue(missing.isDownloaded());
+		assertTrue(known.isDownloaded());
+	}
+
+	@Test
+	public void detectsTransparentSeaMarksWhenComposed() throws IOException {
+		byte[] transparent = TileFixtures.seaMarkTile(3, true);
+		TileGrid grid = new TileGrid(cache, 12, 2200, 1300, 2201, 1300, 12);
+		try {
+			SlippyTile first = grid.get(12, 2200, 1300);
+			SlippyTile second = grid.get(12, 2201, 1300);
+			for (SlippyTile tile : new SlippyTile[] { first, second }) {
+				server.serve(TileServerStub.path("basic", tile), TileFixtures.basicTile(tile.getX()), null);
+				server.serve(TileServerStub.path("seamark", tile), transparent, null);
+			}
+
+			// not decoded by the download
+			download(false, first);
+			assertArrayEquals(transparent, stored(TileLayer.SEA, first));
+
+			first.getFlattened();
+			assertArrayEquals(transparent, stored(TileLayer.SEA, first));
+			assertTrue(cache.getEmptyOverlays().isKnown(ByteBuffer.wrap(transparent)));
+
+			download(false, second);
+			assertEquals(0, stored(TileLayer.SEA, second).length);
+		} finally {
+			grid.close();
+		}
+	}
+
+	@Test
+	public void retriesServerErrors() throws IOException {
+		SlippyTile tile = tile(2200, 1300);
+		String path = TileServerStub.path("basic", tile);
+		byte[] basic = TileFixtures.basicTile(1);
+		server.serve(path, basic, null);
+		server.serve(TileServerStub.path("seamark", tile), TileFixtures.seaMarkTile(1, false), null);
+		server.fail(path, 503, 500);
+
+		download(false, tile);
+
+		assertEquals(3, server.requests(path));
+		assertArrayEquals(basic, stored(TileLayer.BASIC, tile));
+	}
+
+	@Test
+	public void failsAfterRetries() throws IOException {
+		SlippyTile tile = tile(2200, 1300);
+		String path = TileServerStub.path("basic", tile);
+		server.serve(path, TileFixtures.basicTile(1), null);
+		server.fail(path, 503, 503, 503, 503);
+
+		try {
+			download(false, tile);
+			fail("No error after all retries failed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(3, server.requests(path));
+		assertFalse(tile.has(TileLayer.BASIC));
+	}
+
+	@Test
+	public void missingMapTileIsNotRetried() throws IOException {
+		SlippyTile tile = tile(2200, 1300);
+		String path = TileServerStub.path("basic", tile);
+
+		try {
+			download(false, tile);
+			fail("No error for a missing map tile");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, server.requests(path));
+	}
+
+	@Test
+	public void coalescesConcurrentDownloads() throws Exception {
+		List<SlippyTile> tiles = Arrays.asList(tile(2200, 1300), tile(2201, 1300));
+		for (SlippyTile tile : tiles) {
+			server.serve(TileServerStub.path("basic", tile), TileFixtures.basicTile(tile.getX()), null);
+			server.serve(TileServerStub.path("seamark", tile), TileFixtures.seaMarkTile(tile.getX(), false), null);
+		}
+		long coalesced = Stats.getCount("download.coalesced");
+
+		server.hold();
+		ExecutorService regions = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> first = regions.submit(() -> {
+				download(false, tiles.toArray(new SlippyTile[0]));
+				return null;
+			});
+			waitFor(() -> server.received() == 4);
+
+			// overlapping region using the same cache while the first one is downloading
+			List<SlippyTile> same = Arrays.asList(tile(2200, 1300), tile(2201, 1300));
+			Future<?> second = regions.submit(() -> {
+				download(false, same.toArray(new SlippyTile[0]));
+				return null;
+			});
+			waitFor(() -> Stats.getCount("download.coalesced") - coalesced == 4);
+
+			server.release();
+			first.get();
+			second.get();
+		} finally {
+			regions.shutdownNow();
+		}
+
+		assertEquals(4, server.received());
+		for (SlippyTile tile : tiles) {
+			assertEquals(1, server.requests(TileServerStub.path("basic", tile)));
+			assertEquals(1, server.requests(TileServerStub.path("seamark", tile)));
+			assertTrue(tile.isDownloaded());
+		}
+	}
+
+	@Test
+	public void refreshRevalidatesTiles() throws Exception {
+		SlippyTile tile = tile(2200, 1300);
+		String basicPath = TileServerStub.path("basic", tile);
+		String seaPath = TileServerStub.path("seamark", tile);
+		server.serve(basicPath, TileFixtures.basicTile(1), "\"v1\"");
+		server.serve(seaPath, TileFixtures.seaMarkTile(1, false), "\"v1\"");
+		download(false, tile);
+		long downloaded = System.currentTimeMillis();
+
+		// unchanged on the server
+		download(true, tile);
+		assertEquals("\"v1\"", server.getIfNoneMatch(basicPath));
+		assertEquals(2, server.requests(basicPath));
+		assertFalse(cache.getFreshness().changedSince(tile.getZoom(), tile.getX(), tile.getY(), downloaded));
+
+		// new version on the server
+		Thread.sleep(20);
+		byte[] basic = TileFixtures.basicTile(2);
+		server.serve(basicPath, basic, "\"v2\"");
+		download(true, tile);
+		assertArrayEquals(basic, stored(TileLayer.BASIC, tile));
+		assertTrue(cache.getFreshness().changedSince(tile.getZoom(), tile.getX(), tile.getY(), downloaded));
+		assertEquals("\"v2\"", cache.getFreshness().get(TileLayer.BASIC, tile.getZoom(), tile.getX(), tile.getY()).etag);
+	}
+
+	private interface Condition {
+		boolean met();
+	}
+
+	private static void waitFor(Condition condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (!condition.met()) {
+			if (System.currentTimeMillis() > end) {
+				fail("Timeout");
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
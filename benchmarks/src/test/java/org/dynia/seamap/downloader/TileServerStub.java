@@ -0,0 +1,170 @@
+package org.dynia.seamap.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the tile servers (map tiles under /basic/, sea marks under /seamark/).
+ *
+ * Tiles that are not served are answered with 404, tiles with an ETag are answered with 304 if
+ * the request has a matching If-None-Match. Errors can be queued per tile, they are returned
+ * before the tile itself. While the server is held, requests wait until it is released.
+ */
+class TileServerStub implements Closeable {
+
+	private HttpServer server;
+	private ExecutorService executor = Executors.newCachedThreadPool();
+
+	private Map<String, byte[]> tiles = new ConcurrentHashMap<>();
+	private Map<String, String> etags = new ConcurrentHashMap<>();
+	private Map<String, Deque<Integer>> errors = new ConcurrentHashMap<>();
+
+	private Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+	private Map<String, String> ifNoneMatch = new ConcurrentHashMap<>();
+	private AtomicInteger received = new AtomicInteger();
+
+	private volatile CountDownLatch held;
+
+	TileServerStub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @param layer "basic" or "seamark"
+	 * @return base URL of the layer
+	 */
+	String url(String layer) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + layer + "/";
+	}
+
+	/**
+	 * @return path of a tile as requested by the downloader
+	 */
+	static String path(String layer, SlippyTile tile) {
+		return "/" + layer + tile.getPathFragment();
+	}
+
+	void serve(String path, byte[] png, String etag) {
+		tiles.put(path, png);
+		if (etag != null) {
+			etags.put(path, etag);
+		}
+	}
+
+	/**
+	 * Answer the next requests of a tile with given HTTP status codes.
+	 */
+	void fail(String path, int... statuses) {
+		Deque<Integer> queue = errors.computeIfAbsent(path, p -> new ArrayDeque<>());
+		synchronized (queue) {
+			for (int status : statuses) {
+				queue.add(status);
+			}
+		}
+	}
+
+	void hold() {
+		held = new CountDownLatch(1);
+	}
+
+	void release() {
+		held.countDown();
+	}
+
+	/**
+	 * @return number of requests of a tile
+	 */
+	int requests(String path) {
+		AtomicInteger count = requests.get(path);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return number of requests of all tiles (counted before they are held)
+	 */
+	int received() {
+		return received.get();
+	}
+
+	/**
+	 * @return If-None-Match of the last request of a tile
+	 */
+	String getIfNoneMatch(String path) {
+		return ifNoneMatch.get(path);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath().replaceAll("/+", "/");
+			requests.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+			received.incrementAndGet();
+			String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+			if (condition != null) {
+				ifNoneMatch.put(path, condition);
+			}
+
+			CountDownLatch latch = held;
+			if (latch != null && !latch.await(30, TimeUnit.SECONDS)) {
+				throw new IOException("Server held too long");
+			}
+
+			Integer error = null;
+			Deque<Integer> queue = errors.get(path);
+			if (queue != null) {
+				synchronized (queue) {
+					error = queue.poll();
+				}
+			}
+			byte[] png = tiles.get(path);
+			String etag = etags.get(path);
+			if (error != null) {
+				exchange.sendResponseHeaders(error, -1);
+			} else if (png == null) {
+				exchange.sendResponseHeaders(404, -1);
+			} else if (etag != null && etag.equals(condition)) {
+				exchange.getResponseHeaders().set("ETag", etag);
+				exchange.sendResponseHeaders(304, -1);
+			} else {
+				if (etag != null) {
+					exchange.getResponseHeaders().set("ETag", etag);
+				}
+				exchange.getResponseHeaders().set("Content-Type", "image/png");
+				exchange.sendResponseHeaders(200, png.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(png);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (held != null) {
+			held.countDown();
+		}
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+}
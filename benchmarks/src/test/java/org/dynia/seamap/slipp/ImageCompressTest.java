@@ -0,0 +1,214 @@
+package org.dynia.seamap.slipp;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.dynia.seamap.bench.TileFixtures;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The encoder must write the same bytes as the original one, which compressed row after row
+ * with {@link BufferedImage#getRGB(int, int)} and a linear palette search.
+ */
+public class ImageCompressTest {
+
+	private static final int WIDTH = 700;
+	private static final int HEIGHT = 600;
+
+	private List<Color> palette;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		palette = TileFixtures.referencePalette();
+		file = File.createTempFile("seamap-compress", ".kap");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void sameOutputAsOriginalEncoder() throws IOException {
+		BufferedImage image = image(1, 0, HEIGHT);
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			compress(image, fos, null, null).comressImage(0L);
+		}
+		assertArrayEquals(original(image, 0), Files.readAllBytes(file.toPath()));
+	}
+
+	@Test
+	public void sameOutputWithRowsCopiedFromPreviousFile() throws IOException {
+		byte[] header = header();
+		BufferedImage image = image(1, 0, HEIGHT);
+		File previous = File.createTempFile("seamap-previous", ".kap");
+		try {
+			try (FileOutputStream fos = new FileOutputStream(previous)) {
+				fos.write(header);
+				fos.write(original(image, header.length));
+			}
+
+			// changes in the second band (rows 256-511) only
+			BufferedImage changed = image(1, 0, HEIGHT);
+			BufferedImage band = image(2, 300, 100);
+			changed.getGraphics().drawImage(band, 0, 300, null);
+			BitSet dirty = new BitSet();
+			dirty.set(1);
+
+			KapReader reader = new KapReader(previous, true);
+			try (FileOutputStream fos = new FileOutputStream(file)) {
+				fos.write(header);
+				compress(changed, fos, reader, dirty).comressImage((long) header.length);
+			} finally {
+				reader.close();
+			}
+
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			expected.write(header);
+			expected.write(original(changed, header.length));
+			assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+		} finally {
+			previous.delete();
+		}
+	}
+
+	private ImageCompress compress(BufferedImage image, FileOutputStream fos, KapReader previous, BitSet dirty) throws IOException {
+		ImageCompress compress = new ImageCompress(new ImageRasterSource(image), PaletteLookup.forPalette(palette, null), fos);
+		if (previous != null) {
+			compress.setPrevious(previous, dirty);
+		}
+		return compress;
+	}
+
+	/**
+	 * Palette colors in runs of up to 300 pixels, noise and colors far away from the palette.
+	 */
+	private BufferedImage image(long seed, int y0, int height) {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(WIDTH, y0 + height, BufferedImage.TYPE_INT_RGB);
+		for (int y=y0; y<y0 + height; y++) {
+			int x = 0;
+			while (x < WIDTH) {
+				int run = 1 + random.nextInt(random.nextBoolean() ? 4 : 300);
+				int rgb;
+				switch (random.nextInt(3)) {
+				case 0:
+					rgb = palette.get(random.nextInt(palette.size())).getRGB();
+					break;
+				case 1:
+					rgb = random.nextInt();
+					break;
+				default:
+					// far away from the palette: first color is used
+					rgb = 0xFF00FF00;
+				}
+				for (int end = Math.min(WIDTH, x + run); x < end; x++) {
+					image.setRGB(x, y, rgb);
+				}
+			}
+		}
+		return y0 == 0 ? image : image.getSubimage(0, y0, WIDTH, height);
+	}
+
+	private byte[] header() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("BSB/NA=TEST,RA=").append(WIDTH).append(",").append(HEIGHT).append("\r\n");
+		for (int i=0; i<palette.size(); i++) {
+			Color c = palette.get(i);
+			sb.append("RGB/").append(i + 1).append(",").append(c.getRed()).append(",")
+				.append(c.getGreen()).append(",").append(c.getBlue()).append("\r\n");
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+		out.write(26);
+		out.write(0);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Raster data and line index as written by the original encoder.
+	 */
+	private byte[] original(BufferedImage image, long offset) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		List<Long> lineOffsets = new ArrayList<>();
+
+		//color depth
+		out.write(7);
+		lineOffsets.add(0L);
+
+		for (int row=0; row<image.getHeight(); row++) {
+			lineOffsets.add(offset + out.size());
+
+			//row number
+			if (row > 127) {
+				out.write(row/128 - 128);
+			}
+			out.write(row % 128);
+
+			int occurences = 0;
+			int currentColor = reduceToPalette(image.getRGB(0, row));
+			out.write(currentColor + 128);
+			for (int x=0; x<image.getWidth(); x++) {
+				int indexedColor = reduceToPalette(image.getRGB(x, row));
+				if (indexedColor != currentColor) {
+					writeOccurences(out, occurences - 1);
+					occurences = 0;
+					currentColor = indexedColor;
+					out.write(currentColor + 128);
+				}
+				occurences++;
+			}
+			writeOccurences(out, occurences - 1);
+			out.write(0);
+		}
+
+		for (Long l : lineOffsets) {
+			out.write((int) (l >> 24));
+			out.write((int) (l >> 16));
+			out.write((int) (l >> 8));
+			out.write((int) (long) l);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeOccurences(ByteArrayOutputStream out, int occurences) {
+		if (occurences > 127) {
+			out.write(occurences/128 - 128);
+		}
+		out.write(occurences % 128);
+	}
+
+	private int reduceToPalette(int rgb) {
+		int blue = (rgb & 0xff);
+		int green = ((rgb & 0xff00) >> 8);
+		int red = ((rgb & 0xff0000) >> 16);
+
+		int idx = 1;
+		double minDist = 100;
+		for (int i=0; i<palette.size(); i++) {
+			Color c = palette.get(i);
+			double dist = Math.sqrt(Math.pow((c.getRed()-red),2) + Math.pow((c.getGreen()-green),2) + Math.pow((c.getBlue()-blue),2));
+			if (dist < minDist) {
+				minDist = dist;
+				idx = i+1;
+			}
+		}
+		return idx;
+	}
+
+}
@@ -0,0 +1,376 @@
+package org.dynia.seamap.downloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Tiles packed into one append-only archive file per layer: &lt;root&gt;/&lt;LAYER&gt;.tiles
+ * 
+ * Every record is a 16 byte header (zoom, x, y, length) followed by the PNG bytes. When a tile 
+ * is written again, the new record is appended and replaces the old one in the index. The index 
+ * maps the packed tile key to offset and length of the PNG bytes (a hash table of primitive longs, 
+ * see {@link LongIndex}); it is rebuilt by scanning the record headers when the archive is opened. Reads return a slice of the memory-mapped archive. 
+ * Removed tiles are recorded by a header with length -1.
+ * 
+ * A new archive imports all tiles of an existing directory cache of the same layer 
+ * (see {@link DirectoryTileStore}).
+ */
+public class ArchiveTileStore implements TileStore {
+
+	private static final int HEADER_SIZE = 16;
+
+	/** length of a record marking a removed tile */
+	private static final int REMOVED = -1;
+
+	/** length is stored in the lower bits of an index entry */
+	private static final int LENGTH_BITS = 24;
+	private static final long MAX_LENGTH = (1L << LENGTH_BITS) - 1;
+
+	private Archive[] archives = new Archive[TileLayer.values().length];
+
+	public ArchiveTileStore(String rootPath) throws IOException {
+		for (TileLayer layer : TileLayer.values()) {
+			File file = new File(rootPath + layer.name() + ".tiles");
+			boolean exists = file.exists();
+
+			Archive archive = new Archive(file);
+			archives[layer.ordinal()] = archive;
+
+			File directory = new File(rootPath + layer.name());
+			if (!exists && directory.isDirectory()) {
+				int count = archive.importDirectory(directory);
+				System.out.println("Imported ["+count+"] tiles from ["+directory.getPath()+"] into ["+file.getPath()+"]");
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(TileLayer layer, int zoom, int x, int y) {
+		return archives[layer.ordinal()].contains(SlippyTile.packKey(zoom, x, y));
+	}
+
+	@Override
+	public long length(TileLayer layer, int zoom, int x, int y) {
+		return archives[layer.ordinal()].length(SlippyTile.packKey(zoom, x, y));
+	}
+
+	/**
+	 * Write times of single tiles are not kept.
+	 */
+	@Override
+	public long lastModified(TileLayer layer, int zoom, int x, int y) {
+		return 0;
+	}
+
+	@Override
+	public void scan(TileLayer layer, int zoom, int x1, int y1, int x2, int y2, Visitor visitor) throws IOException {
+		archives[layer.ordinal()].scan(zoom, x1, y1, x2, y2, visitor);
+	}
+
+	@Override
+	public ByteBuffer read(TileLayer layer, int zoom, int x, int y) throws IOException {
+		return archives[layer.ordinal()].read(SlippyTile.packKey(zoom, x, y));
+	}
+
+	@Override
+	public void write(TileLayer layer, int zoom, int x, int y, InputStream data) throws IOException {
+		archives[layer.ordinal()].append(zoom, x, y, readFully(data));
+	}
+
+	@Override
+	public void remove(TileLayer layer, int zoom, int x, int y) throws IOException {
+		archives[layer.ordinal()].remove(zoom, x, y);
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Archive archive : archives) {
+			archive.close();
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(32 * 1024);
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			bos.write(buffer, 0, n);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Archive file of a single layer.
+	 */
+	private static class Archive {
+
+		private FileChannel channel;
+
+		/** packed tile key -&gt; offset of PNG bytes (upper bits) and length (lower bits) */
+		private LongIndex index = new LongIndex();
+
+		private long size;
+
+		private volatile MappedByteBuffer mapped;
+
+		Archive(File file) throws IOException {
+			file.getParentFile().mkdirs();
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			scan();
+		}
+
+		/**
+		 * Rebuild index from record headers. An incomplete record at the end (interrupted write) is cut off.
+		 */
+		private void scan() throws IOException {
+			long fileSize = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			long offset = 0;
+			while (offset + HEADER_SIZE <= fileSize) {
+				header.clear();
+				while (header.hasRemaining()) {
+					channel.read(header, offset + header.position());
+				}
+				header.flip();
+				int zoom = header.getInt();
+				int x = header.getInt();
+				int y = header.getInt();
+				int length = header.getInt();
+				if (length == REMOVED) {
+					index.remove(SlippyTile.packKey(zoom, x, y));
+					offset += HEADER_SIZE;
+					continue;
+				}
+				if (length < 0 || offset + HEADER_SIZE + length > fileSize) {
+					break;
+				}
+				index.put(SlippyTile.packKey(zoom, x, y), entry(offset + HEADER_SIZE, length));
+				offset += HEADER_SIZE + length;
+			}
+			if (offset < fileSize) {
+				System.out.println("Truncating incomplete archive record at ["+offset+"]");
+				channel.truncate(offset);
+			}
+			size = offset;
+		}
+
+		synchronized boolean contains(long key) {
+			return index.get(key) != 0;
+		}
+
+		/**
+		 * Visit the tiles of the index in the range of a zoom level.
+		 */
+		synchronized void scan(int zoom, int x1, int y1, int x2, int y2, Visitor visitor) throws IOException {
+			for (int i=0; i<index.capacity(); i++) {
+				long entry = index.entryAt(i);
+				if (entry == 0) {
+					continue;
+				}
+				long key = index.keyAt(i);
+				int x = (int) ((key >>> 29) & 0x1FFFFFFF);
+				int y = (int) (key & 0x1FFFFFFF);
+				if ((int) (key >>> 58) == zoom && x >= x1 && x <= x2 && y >= y1 && y <= y2) {
+					visitor.visit(x, y, entry & MAX_LENGTH);
+				}
+			}
+		}
+
+		synchronized long length(long key) {
+			long entry = index.get(key);
+			return entry == 0 ? -1 : entry & MAX_LENGTH;
+		}
+
+		ByteBuffer read(long key) throws IOException {
+			long entry;
+			synchronized (this) {
+				entry = index.get(key);
+			}
+			if (entry == 0) {
+				return null;
+			}
+			long offset = entry >>> LENGTH_BITS;
+			int length = (int) (entry & MAX_LENGTH);
+
+			if (offset + length > Integer.MAX_VALUE) {
+				// beyond the range of a single mapping
+				return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			}
+
+			MappedByteBuffer buffer = mapped;
+			if (buffer == null || offset + length > buffer.capacity()) {
+				buffer = remap();
+			}
+			ByteBuffer slice = buffer.duplicate();
+			slice.position((int) offset);
+			slice.limit((int) offset + length);
+			return slice.slice();
+		}
+
+		private synchronized MappedByteBuffer remap() throws IOException {
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+			return mapped;
+		}
+
+		synchronized void append(int zoom, int x, int y, byte[] data) throws IOException {
+			if (data.length > MAX_LENGTH) {
+				throw new IOException("Tile too big for archive ["+data.length+"]");
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(zoom).putInt(x).putInt(y).putInt(data.length).flip();
+			ByteBuffer[] record = new ByteBuffer[] { header, ByteBuffer.wrap(data) };
+
+			channel.position(size);
+			while (record[1].hasRemaining()) {
+				channel.write(record);
+			}
+			index.put(SlippyTile.packKey(zoom, x, y), entry(size + HEADER_SIZE, data.length));
+			size += HEADER_SIZE + data.length;
+		}
+
+		synchronized void remove(int zoom, int x, int y) throws IOException {
+			if (index.remove(SlippyTile.packKey(zoom, x, y)) == 0) {
+				return;
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(zoom).putInt(x).putInt(y).putInt(REMOVED).flip();
+			while (header.hasRemaining()) {
+				channel.write(header, size + header.position());
+			}
+			size += HEADER_SIZE;
+		}
+
+		/**
+		 * Append all tiles found in directory tree zoom/x/y.png
+		 * @return number of imported tiles
+		 */
+		int importDirectory(File directory) throws IOException {
+			return DirectoryTileStore.scanDirectory(directory, (zoom, x, y, file) -> {
+				try (InputStream in = new FileInputStream(file)) {
+					append(zoom, x, y, readFully(in));
+				}
+			});
+		}
+
+		private static long entry(long offset, int length) {
+			return (offset << LENGTH_BITS) | length;
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Hash table from packed tile key to index entry (open addressing, linear probing), no object 
+	 * per tile. An entry is never 0 (the PNG bytes follow a record header), 0 marks a free slot.
+	 */
+	static class LongIndex {
+
+		private long[] keys = new long[1024];
+		private long[] entries = new long[1024];
+		private int size;
+
+		/**
+		 * @return entry of the key or 0 if none
+		 */
+		long get(long key) {
+			int mask = keys.length - 1;
+			for (int i=slot(key, mask); entries[i] != 0; i=(i + 1) & mask) {
+				if (keys[i] == key) {
+					return entries[i];
+				}
+			}
+			return 0;
+		}
+
+		void put(long key, long entry) {
+			if (2 * (size + 1) > keys.length) {
+				grow();
+			}
+			int mask = keys.length - 1;
+			int i = slot(key, mask);
+			while (entries[i] != 0) {
+				if (keys[i] == key) {
+					entries[i] = entry;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			entries[i] = entry;
+			size++;
+		}
+
+		/**
+		 * @return removed entry or 0 if none
+		 */
+		long remove(long key) {
+			int mask = keys.length - 1;
+			int i = slot(key, mask);
+			while (entries[i] != 0 && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			long removed = entries[i];
+			if (removed == 0) {
+				return 0;
+			}
+			// move following keys of the same run into the gap, unless their slot is after the gap
+			int gap = i;
+			for (int j=(i + 1) & mask; entries[j] != 0; j=(j + 1) & mask) {
+				if (((j - slot(keys[j], mask)) & mask) >= ((j - gap) & mask)) {
+					keys[gap] = keys[j];
+					entries[gap] = entries[j];
+					gap = j;
+				}
+			}
+			entries[gap] = 0;
+			size--;
+			return removed;
+		}
+
+		/**
+		 * @return number of slots, see {@link #keyAt(int)} and {@link #entryAt(int)}
+		 */
+		int capacity() {
+			return keys.length;
+		}
+
+		long keyAt(int slot) {
+			return keys[slot];
+		}
+
+		/**
+		 * @return entry of the slot or 0 if it is free
+		 */
+		long entryAt(int slot) {
+			return entries[slot];
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			long[] oldEntries = entries;
+			keys = new long[oldKeys.length * 2];
+			entries = new long[oldKeys.length * 2];
+			size = 0;
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldEntries[i] != 0) {
+					put(oldKeys[i], oldEntries[i]);
+				}
+			}
+		}
+
+		private static int slot(long key, int mask) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package org.dynia.seamap.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dynia.seamap.stats.Log;
+import org.dynia.seamap.stats.Stats;
+
+/**
+ * Creates the charts of many regions in one run.
+ * 
+ * Regions with the same cache.dir share one tile cache, regions without cache.dir use 
+ * {@link #DEFAULT_CACHE_DIR}. Tiles of overlapping regions are downloaded (and flattened, see 
+ * flat.cache) only once: the union of the tiles of all regions of a cache is downloaded using the 
+ * download settings (url.*, download.*) of the first of these regions, differing settings of the 
+ * other regions are reported and ignored. The panes of all regions are processed on a single pool 
+ * (size is the smallest pane.threads of all regions).
+ */
+public class Batch {
+
+	/** tile cache of all regions without cache.dir */
+	public static final String DEFAULT_CACHE_DIR = "cache/";
+
+	private List<Downloader> regions = new ArrayList<>();
+
+	private Map<String, TileCache> caches = new LinkedHashMap<>();
+
+	/**
+	 * @param propFileNames one configuration file per region
+	 * @throws IOException
+	 */
+	public Batch(List<String> propFileNames) throws IOException {
+		Map<TileCache, Properties> first = new HashMap<>();
+		Map<TileCache, String> firstTitle = new HashMap<>();
+		for (String propFileName : propFileNames) {
+			Properties prop = Downloader.loadProperties(propFileName);
+			if (prop.getProperty("cache.dir") == null) {
+				prop.setProperty("cache.dir", DEFAULT_CACHE_DIR);
+			}
+			if (regions.isEmpty()) {
+				Downloader.startRun(prop);
+			}
+			Downloader d = new Downloader();
+			d.init(prop, caches);
+			regions.add(d);
+
+			if (first.putIfAbsent(d.getCache(), prop) == null) {
+				firstTitle.put(d.getCache(), d.getTitle());
+			} else {
+				checkDownloadSettings(d.getTitle(), prop, firstTitle.get(d.getCache()), first.get(d.getCache()));
+			}
+		}
+		Log.flush();
+	}
+
+	/**
+	 * Report url.* and download.* settings of a region that differ from the region whose settings 
+	 * are used to download the tiles of the cache.
+	 */
+	private static void checkDownloadSettings(String title, Properties prop, String firstTitle, Properties first) {
+		TreeSet<String> names = new TreeSet<>(prop.stringPropertyNames());
+		names.addAll(first.stringPropertyNames());
+		for (String name : names) {
+			if (!name.startsWith("url.") && !name.startsWith("download.")) {
+				continue;
+			}
+			String value = trim(prop.getProperty(name));
+			String used = trim(first.getProperty(name));
+			if (!Objects.equals(value, used)) {
+				Log.warn(() -> "["+title+"] "+name+"=["+value+"] is ignored, tiles of the shared cache are downloaded with ["+firstTitle+"] "+name+"=["+used+"]");
+			}
+		}
+	}
+
+	private static String trim(String value) {
+		return value == null ? null : value.trim();
+	}
+
+	public void run() throws IOException {
+		try {
+			download();
+
+			for (Downloader d : regions) {
+				System.out.println("-- FLATTEN ["+d.getTitle()+"] --");
+				d.flattenLayers();
+			}
+
+			saveKapFiles();
+		} finally {
+			for (Downloader d : regions) {
+				d.close();
+			}
+			for (TileCache cache : caches.values()) {
+				cache.close();
+			}
+		}
+
+		Log.flush();
+		Stats.printSummary();
+		Map<String, Object> info = new LinkedHashMap<>();
+		StringBuilder titles = new StringBuilder();
+		for (Downloader d : regions) {
+			titles.append(titles.length() == 0 ? "" : ",").append(d.getTitle());
+		}
+		info.put("regions", titles.toString());
+		info.put("caches", caches.size());
+		Stats.writeReport(new File("batch-run-report.json"), info);
+	}
+
+	/**
+	 * Download the union of the tiles of all regions, once per cache.
+	 */
+	private void download() throws IOException {
+		Map<TileCache, Map<Long, SlippyTile>> union = new LinkedHashMap<>();
+		Map<TileCache, Downloader> first = new HashMap<>();
+		int total = 0;
+		for (Downloader d : regions) {
+			List<SlippyTile> tiles = d.createTiles();
+			total += tiles.size();
+
+			Map<Long, SlippyTile> cacheTiles = union.get(d.getCache());
+			if (cacheTiles == null) {
+				cacheTiles = new LinkedHashMap<>();
+				union.put(d.getCache(), cacheTiles);
+				first.put(d.getCache(), d);
+			}
+			for (SlippyTile tile : tiles) {
+				cacheTiles.putIfAbsent(SlippyTile.packKey(tile.getZoom(), tile.getX(), tile.getY()), tile);
+			}
+		}
+
+		int unique = 0;
+		for (Map.Entry<TileCache, Map<Long, SlippyTile>> e : union.entrySet()) {
+			unique += e.getValue().size();
+			System.out.println("-- DOWNLOADING ["+e.getKey().getRoot()+"] --");
+			first.get(e.getKey()).getDownloadEngine().download(new ArrayList<>(e.getValue().values()));
+		}
+		System.out.println("Tiles of all regions ["+total+"], unique ["+unique+"]");
+		Stats.count("batch.duplicateTiles", total - unique);
+	}
+
+	/**
+	 * Create the KAP files of all regions on a shared pool.
+	 */
+	private void saveKapFiles() throws IOException {
+		int threads = Integer.MAX_VALUE;
+		List<List<Pane>> panes = new ArrayList<>();
+		for (Downloader d : regions) {
+			threads = Math.min(threads, d.getPaneThreads());
+			panes.add(d.preparePanes());
+		}
+
+		System.out.println("-- START (processing kap) --");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i=0; i<regions.size(); i++) {
+				futures.addAll(regions.get(i).submitPanes(panes.get(i), executor));
+			}
+			Downloader.await(futures);
+		} finally {
+			executor.shutdownNow();
+		}
+		Log.flush();
+		System.out.println("-- END (processing kap) --");
+	}
+
+}
@@ -0,0 +1,511 @@
+package org.dynia.seamap.downloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.dynia.seamap.stats.Log;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running service creating the KAP files of regions requested over HTTP.
+ *
+ * The tile caches (one per cache.dir, kept open), palette lookups and decoded tiles stay in memory
+ * between requests. A chart is identified by its tiles (zoom and tile range of the bounding box)
+ * and dpi: identical requests are answered by a single build, builds of overlapping regions fetch
+ * every tile only once (see {@link TileCache}). Finished charts are kept in a result cache bounded
+ * by the size of their KAP files; the least recently used charts are deleted.
+ *
+ * Requests:
+ * <ul>
+ * <li>GET /chart?north=..&amp;west=..&amp;south=..&amp;east=..&amp;zoom=..&amp;dpi=.. - the KAP file
+ * (zip of all KAP files if the region is split into panes); zoom and dpi default to the configuration</li>
+ * <li>GET /status - builds in progress and result cache as JSON</li>
+ * </ul>
+ *
+ * The configuration file of the service holds the settings of all charts (title and region are
+ * taken from the request), plus (all optional):
+ * <ul>
+ * <li>service.host - address to listen on (default 127.0.0.1)</li>
+ * <li>service.port - (default 8080)</li>
+ * <li>service.dir - folder of the charts, cache.dir defaults to its cache/ folder (default service/)</li>
+ * <li>service.builds - charts built at the same time (default 2)</li>
+ * <li>service.threads - requests handled at the same time (default 8)</li>
+ * <li>service.cache.mb - size of the KAP files kept (default 1024)</li>
+ * <li>service.maxTiles - max. number of tiles of a request (default 10000)</li>
+ * </ul>
+ */
+public class ChartService {
+
+	/**
+	 * KAP files of a finished chart.
+	 */
+	private static class Chart {
+		final String key;
+		final File home;
+		final List<File> files;
+		final long size;
+
+		Chart(String key, File home, List<File> files) {
+			this.key = key;
+			this.home = home;
+			this.files = files;
+			long size = 0;
+			for (File f : files) {
+				size += f.length();
+			}
+			this.size = size;
+		}
+	}
+
+	private Properties defaults;
+	private File chartDir;
+	private long maxBytes;
+	private int maxTiles;
+
+	private HttpServer server;
+	private ExecutorService builds;
+	private ExecutorService handlers;
+
+	// open tile caches by download folder, shared by all builds
+	private final Map<String, TileCache> caches = new HashMap<>();
+
+	// builds in progress by chart key
+	private final Map<String, CompletableFuture<Chart>> building = new ConcurrentHashMap<>();
+
+	// finished charts by key, least recently used first
+	private final LinkedHashMap<String, Chart> results = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong built = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param prop configuration of the service and default settings of the charts
+	 */
+	public ChartService(Properties prop) {
+		String dir = prop.getProperty("service.dir", "service/").trim();
+		if (!dir.endsWith("/")) {
+			dir += "/";
+		}
+		this.defaults = new Properties();
+		defaults.putAll(prop);
+		if (!defaults.containsKey("cache.dir")) {
+			defaults.setProperty("cache.dir", dir + "cache/");
+		}
+		defaults.setProperty("output.dir", dir + "charts/");
+		this.chartDir = new File(dir, "charts");
+		this.maxBytes = Long.parseLong(prop.getProperty("service.cache.mb", "1024").trim()) << 20;
+		this.maxTiles = Integer.parseInt(prop.getProperty("service.maxTiles", "10000").trim());
+	}
+
+	/**
+	 * Start listening, charts of earlier runs are added to the result cache.
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		String host = defaults.getProperty("service.host", "127.0.0.1").trim();
+		int port = Integer.parseInt(defaults.getProperty("service.port", "8080").trim());
+		int buildThreads = Integer.parseInt(defaults.getProperty("service.builds", "2").trim());
+		int threads = Integer.parseInt(defaults.getProperty("service.threads", "8").trim());
+
+		// statistics, log level and decoded tile cache are shared by all builds
+		Downloader.startRun(defaults);
+		loadResults();
+
+		builds = Executors.newFixedThreadPool(buildThreads);
+		handlers = Executors.newFixedThreadPool(threads);
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext("/chart", this::handleChart);
+		server.createContext("/status", this::handleStatus);
+		server.setExecutor(handlers);
+		server.start();
+		System.out.println("Chart service listening on http://"+host+":"+server.getAddress().getPort()+"/chart ["+buildThreads+"] builds");
+	}
+
+	/**
+	 * Stop listening and close the tile caches.
+	 * @throws IOException
+	 */
+	public void stop() throws IOException {
+		server.stop(0);
+		handlers.shutdownNow();
+		builds.shutdownNow();
+		synchronized (caches) {
+			for (TileCache cache : caches.values()) {
+				cache.close();
+			}
+		}
+	}
+
+	private void handleChart(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				sendText(exchange, 405, "Method not allowed");
+				return;
+			}
+			requests.incrementAndGet();
+			Properties prop;
+			try {
+				prop = createRequest(parseQuery(exchange.getRequestURI().getRawQuery()));
+			} catch (IllegalArgumentException e) {
+				sendText(exchange, 400, e.getMessage());
+				return;
+			}
+
+			// charts evicted before their files are opened are built again once
+			for (int attempt = 0; ; attempt++) {
+				Chart chart = getChart(prop);
+				List<InputStream> in = new ArrayList<>();
+				try {
+					for (File f : chart.files) {
+						in.add(new FileInputStream(f));
+					}
+				} catch (FileNotFoundException e) {
+					close(in);
+					if (attempt == 0) {
+						continue;
+					}
+					throw e;
+				}
+				sendChart(exchange, chart, in);
+				return;
+			}
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Chart request failed: " + exchange.getRequestURI() + " (" + e + ")");
+			sendText(exchange, 500, String.valueOf(e.getMessage()));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleStatus(HttpExchange exchange) throws IOException {
+		StringBuilder sb = new StringBuilder("{\n");
+		synchronized (results) {
+			sb.append("  \"charts\": ").append(results.size()).append(",\n");
+			sb.append("  \"bytes\": ").append(bytes).append(",\n");
+			sb.append("  \"maxBytes\": ").append(maxBytes).append(",\n");
+		}
+		sb.append("  \"building\": ").append(building.size()).append(",\n");
+		sb.append("  \"requests\": ").append(requests.get()).append(",\n");
+		sb.append("  \"hits\": ").append(hits.get()).append(",\n");
+		sb.append("  \"coalesced\": ").append(coalesced.get()).append(",\n");
+		sb.append("  \"built\": ").append(built.get()).append(",\n");
+		sb.append("  \"failed\": ").append(failed.get()).append("\n}\n");
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			send(exchange, 200, sb.toString());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return configuration of the chart of the request, its title is the key of the chart
+	 * @throws IllegalArgumentException if a parameter is missing or invalid
+	 */
+	private Properties createRequest(Map<String, String> query) {
+		double north = parse(query, "north", null);
+		double west = parse(query, "west", null);
+		double south = parse(query, "south", null);
+		double east = parse(query, "east", null);
+		double z = parse(query, "zoom", defaults.getProperty("zoom"));
+		double dpi = parse(query, "dpi", defaults.getProperty("dpi"));
+
+		int zoom = (int) z;
+		if (zoom != z || zoom < 0 || zoom > 20 || dpi <= 0 || north <= south || west >= east
+				|| Math.abs(north) > 85 || Math.abs(south) > 85 || Math.abs(west) > 180 || Math.abs(east) > 180) {
+			throw new IllegalArgumentException("Invalid region");
+		}
+		int x1 = Downloader.getXTileNumber(north, west, zoom);
+		int y1 = Downloader.getYTileNumber(north, west, zoom);
+		int x2 = Downloader.getXTileNumber(south, east, zoom);
+		int y2 = Downloader.getYTileNumber(south, east, zoom);
+		long tiles = (1L + x2 - x1) * (1L + y2 - y1);
+		if (tiles > maxTiles) {
+			throw new IllegalArgumentException("Region too large: ["+tiles+"] tiles (max. "+maxTiles+")");
+		}
+
+		String dpiName = dpi == Math.rint(dpi) ? "" + (long) dpi : ("" + dpi).replace('.', '_');
+		Properties prop = new Properties(defaults);
+		prop.setProperty("title", "chart_"+zoom+"_"+x1+"_"+y1+"_"+x2+"_"+y2+"_"+dpiName);
+		prop.setProperty("north", "" + north);
+		prop.setProperty("west", "" + west);
+		prop.setProperty("south", "" + south);
+		prop.setProperty("east", "" + east);
+		prop.setProperty("zoom", "" + zoom);
+		prop.setProperty("dpi", "" + dpi);
+		return prop;
+	}
+
+	/**
+	 * @return finished chart, built if not in the result cache and not being built already
+	 * @throws IOException error of the build
+	 */
+	private Chart getChart(Properties prop) throws IOException {
+		String key = prop.getProperty("title");
+		Chart chart = lookup(key);
+		if (chart != null) {
+			hits.incrementAndGet();
+			return chart;
+		}
+
+		CompletableFuture<Chart> own = new CompletableFuture<>();
+		CompletableFuture<Chart> other = building.putIfAbsent(key, own);
+		if (other != null) {
+			coalesced.incrementAndGet();
+			return await(other);
+		}
+		// finished between lookup and registration
+		chart = lookup(key);
+		if (chart != null) {
+			building.remove(key, own);
+			own.complete(chart);
+			hits.incrementAndGet();
+			return chart;
+		}
+
+		builds.execute(() -> {
+			try {
+				Chart result = build(key, prop);
+				add(result);
+				built.incrementAndGet();
+				own.complete(result);
+			} catch (Throwable e) {
+				failed.incrementAndGet();
+				own.completeExceptionally(e);
+			} finally {
+				building.remove(key, own);
+			}
+		});
+		return await(own);
+	}
+
+	private Chart build(String key, Properties prop) throws IOException {
+		System.out.println("-- BUILD ["+key+"] --");
+		Downloader d = new Downloader();
+		synchronized (caches) {
+			d.init(prop, caches);
+		}
+		try {
+			d.process();
+		} finally {
+			d.close();
+		}
+		Log.flush();
+
+		List<File> files = d.getKapFiles();
+		files.sort(Comparator.comparing(File::getName));
+		System.out.println("-- BUILT ["+key+"] ["+files.size()+"] KAP files --");
+		return new Chart(key, new File(d.getHome()), files);
+	}
+
+	private static Chart await(CompletableFuture<Chart> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	private Chart lookup(String key) {
+		synchronized (results) {
+			return results.get(key);
+		}
+	}
+
+	/**
+	 * Add chart to the result cache and delete the least recently used charts above the size limit
+	 * (the newest chart is always kept).
+	 */
+	private void add(Chart chart) {
+		synchronized (results) {
+			Chart old = results.put(chart.key, chart);
+			if (old != null) {
+				bytes -= old.size;
+			}
+			bytes += chart.size;
+			Iterator<Chart> it = results.values().iterator();
+			while (bytes > maxBytes && results.size() > 1) {
+				Chart eldest = it.next();
+				it.remove();
+				bytes -= eldest.size;
+				delete(eldest.home);
+				System.out.println("Chart removed from result cache ["+eldest.key+"]");
+			}
+		}
+	}
+
+	/**
+	 * Add the charts of earlier runs, oldest first.
+	 */
+	private void loadResults() {
+		File[] homes = chartDir.listFiles(File::isDirectory);
+		if (homes == null) {
+			return;
+		}
+		Arrays.sort(homes, Comparator.comparingLong(File::lastModified));
+		for (File home : homes) {
+			File[] files = home.listFiles((dir, name) -> name.endsWith(".kap"));
+			if (files != null && files.length > 0) {
+				Arrays.sort(files, Comparator.comparing(File::getName));
+				add(new Chart(home.getName(), home, Arrays.asList(files)));
+			}
+		}
+		System.out.println("Result cache: ["+results.size()+"] charts ["+(bytes >> 20)+" MB]");
+	}
+
+	private static void delete(File dir) {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		} catch (IOException e) {
+			System.out.println("Cannot delete ["+dir+"]: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Send the single KAP file or a zip of all KAP files of the chart.
+	 */
+	private static void sendChart(HttpExchange exchange, Chart chart, List<InputStream> in) throws IOException {
+		try {
+			if (chart.files.size() == 1) {
+				File f = chart.files.get(0);
+				long length = ((FileInputStream) in.get(0)).getChannel().size();
+				exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+				exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\""+f.getName()+"\"");
+				exchange.sendResponseHeaders(200, length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					copy(in.get(0), out);
+				}
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", "application/zip");
+			exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\""+chart.key+".zip\"");
+			exchange.sendResponseHeaders(200, 0);
+			try (ZipOutputStream zip = new ZipOutputStream(exchange.getResponseBody())) {
+				for (int i=0; i<chart.files.size(); i++) {
+					zip.putNextEntry(new ZipEntry(chart.files.get(i).getName()));
+					copy(in.get(i), zip);
+					zip.closeEntry();
+				}
+			}
+		} finally {
+			close(in);
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[65536];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+	}
+
+	private static void close(List<InputStream> in) {
+		for (InputStream s : in) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) {
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			send(exchange, status, text + "\n");
+		} catch (IOException e) {
+			// response started already or client gone
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> result = new HashMap<>();
+		if (query == null) {
+			return result;
+		}
+		try {
+			for (String pair : query.split("&")) {
+				int i = pair.indexOf('=');
+				if (i > 0) {
+					result.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"), URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * @return finite value of the parameter
+	 * @throws IllegalArgumentException if missing or not a finite number
+	 */
+	private static double parse(Map<String, String> query, String name, String defaultValue) {
+		String value = query.getOrDefault(name, defaultValue);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing parameter: " + name);
+		}
+		double result;
+		try {
+			result = Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid parameter: " + name + "=" + value);
+		}
+		// NaN and infinity pass every range check
+		if (!Double.isFinite(result)) {
+			throw new IllegalArgumentException("Invalid parameter: " + name + "=" + value);
+		}
+		return result;
+	}
+
+}
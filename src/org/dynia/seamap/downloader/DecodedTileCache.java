@@ -0,0 +1,81 @@
+package org.dynia.seamap.downloader;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded and flattened tiles by hash (SHA-1) of their PNG bytes.
+ * 
+ * Open water and empty land tiles are byte-identical, so each distinct tile is decoded (and composed) 
+ * once and the image is shared by all tiles with the same content. The least recently used images are 
+ * dropped when the cache exceeds its size. Shared images must not be modified.
+ */
+public class DecodedTileCache {
+
+	private static long maxBytes = 64L << 20;
+	private static long bytes;
+
+	private static final LinkedHashMap<String, BufferedImage> images = new LinkedHashMap<>(256, 0.75f, true);
+
+	/**
+	 * @param max size of all cached images in bytes (0 disables the cache)
+	 */
+	public static synchronized void setMaxBytes(long max) {
+		maxBytes = max;
+		evict();
+	}
+
+	static synchronized BufferedImage get(String key) {
+		return images.get(key);
+	}
+
+	static synchronized void put(String key, BufferedImage image) {
+		long size = size(image);
+		if (size > maxBytes) {
+			return;
+		}
+		BufferedImage old = images.put(key, image);
+		if (old != null) {
+			bytes -= size(old);
+		}
+		bytes += size;
+		evict();
+	}
+
+	/**
+	 * @return key of the content of all given buffers (positions are not changed)
+	 */
+	static String key(ByteBuffer... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (ByteBuffer part : parts) {
+				digest.update(part.duplicate());
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b & 0xFF));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void evict() {
+		Iterator<Map.Entry<String, BufferedImage>> it = images.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= size(it.next().getValue());
+			it.remove();
+		}
+	}
+
+	private static long size(BufferedImage image) {
+		return 4L * image.getWidth() * image.getHeight();
+	}
+
+}
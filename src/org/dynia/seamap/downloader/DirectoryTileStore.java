@@ -0,0 +1,147 @@
+package org.dynia.seamap.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Tiles stored as separate files: &lt;root&gt;/&lt;LAYER&gt;/zoom/x/y.png
+ *
+ * The store keeps no list of its tiles: a region lists the tile columns of its range once
+ * (see {@link #scan(TileLayer, int, int, int, int, int, Visitor)} and {@link TileGrid}),
+ * other checks ask the file system.
+ */
+public class DirectoryTileStore implements TileStore {
+
+	/**
+	 * Callback for tile files found in a directory tree.
+	 */
+	interface FileVisitor {
+		void visit(int zoom, int x, int y, File file) throws IOException;
+	}
+
+	private String rootPath;
+
+	public DirectoryTileStore(String rootPath) {
+		this.rootPath = rootPath;
+	}
+
+	File getFile(TileLayer layer, int zoom, int x, int y) {
+		return new File(rootPath + layer.name() + SlippyTile.getPathFragment(zoom, x, y));
+	}
+
+	@Override
+	public boolean contains(TileLayer layer, int zoom, int x, int y) {
+		return getFile(layer, zoom, x, y).isFile();
+	}
+
+	@Override
+	public long length(TileLayer layer, int zoom, int x, int y) {
+		File f = getFile(layer, zoom, x, y);
+		return f.isFile() ? f.length() : -1;
+	}
+
+	@Override
+	public long lastModified(TileLayer layer, int zoom, int x, int y) {
+		return getFile(layer, zoom, x, y).lastModified();
+	}
+
+	/**
+	 * Lists one folder per tile column of the range.
+	 */
+	@Override
+	public void scan(TileLayer layer, int zoom, int x1, int y1, int x2, int y2, Visitor visitor) throws IOException {
+		for (int x=x1; x<=x2; x++) {
+			for (File f : listTiles(new File(rootPath + layer.name() + "/" + zoom + "/" + x))) {
+				int y = tileNumber(f);
+				if (y >= y1 && y <= y2) {
+					visitor.visit(x, y, f.length());
+				}
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer read(TileLayer layer, int zoom, int x, int y) throws IOException {
+		File f = getFile(layer, zoom, x, y);
+		try {
+			return ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The data is written to a temporary file first and renamed when complete, so an interrupted
+	 * download never leaves a partial tile.
+	 */
+	@Override
+	public void write(TileLayer layer, int zoom, int x, int y, InputStream data) throws IOException {
+		File f = getFile(layer, zoom, x, y);
+		f.getParentFile().mkdirs();
+		Path tmp = Files.createTempFile(f.getParentFile().toPath(), f.getName() + ".", ".tmp");
+		try {
+			Files.copy(data, tmp, StandardCopyOption.REPLACE_EXISTING);
+			try {
+				Files.move(tmp, f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	@Override
+	public void remove(TileLayer layer, int zoom, int x, int y) throws IOException {
+		Files.deleteIfExists(getFile(layer, zoom, x, y).toPath());
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Visit all tiles of directory tree zoom/x/y.png
+	 * @return number of tiles
+	 */
+	static int scanDirectory(File directory, FileVisitor visitor) throws IOException {
+		int count = 0;
+		for (File zoomDir : listDirs(directory)) {
+			int zoom = Integer.parseInt(zoomDir.getName());
+			for (File xDir : listDirs(zoomDir)) {
+				int x = Integer.parseInt(xDir.getName());
+				for (File f : listTiles(xDir)) {
+					visitor.visit(zoom, x, tileNumber(f), f);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static File[] listDirs(File dir) {
+		File[] dirs = dir.listFiles(f -> f.getName().matches("[0-9]+") && f.isDirectory());
+		return dirs == null ? new File[0] : dirs;
+	}
+
+	/**
+	 * @return tile files y.png of a column, other files are ignored
+	 */
+	private static File[] listTiles(File dir) {
+		File[] files = dir.listFiles(f -> f.getName().matches("[0-9]+\\.png") && f.isFile());
+		return files == null ? new File[0] : files;
+	}
+
+	private static int tileNumber(File f) {
+		String name = f.getName();
+		return Integer.parseInt(name.substring(0, name.length()-4));
+	}
+
+}
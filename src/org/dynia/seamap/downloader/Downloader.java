@@ -8,35 +8,104 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import javax.imageio.ImageIO;
 
 import org.dynia.seamap.slipp.KapFile;
+import org.dynia.seamap.slipp.OctreeQuantizer;
+import org.dynia.seamap.stats.Log;
+import org.dynia.seamap.stats.Stats;
+import org.dynia.seamap.stats.Stats.Stage;
 
 public class Downloader {
 
 	private String title;
+
+	// folder of the KAP files, sources and report (output.dir + title)
+	private String home;
+
 	private int zoom;
 	private int x1, y1;
 	private int x2, y2;
 	
 	private Double screen_dpi;
 
-	List<SlippyTile> tiles = null;
-
-	Map<String, SlippyTile> tilesMap;
+	// tiles of all zoom levels of the region
+	TileGrid grid;
 
+	// generated palette (null: use reference palette)
 	List<Color> palette; 
 
+	// palette generation: "reference" (reference_palette.txt) or "octree"
+	private String paletteMode;
+	private int paletteColors;
+	private int paletteSample;
+
+	private TileDownloadEngine downloadEngine;
+
+	private TileCache cache;
+
+	// cache opened by this downloader (not shared with other regions)
+	private boolean ownsCache;
+
+	private TileStore tileStore;
+
+	private TileFreshness freshness;
+
+	// compose panes band by band instead of writing the merged image
+	private boolean streaming;
+
+	/** max. number of tiles of a pane in each direction */
+	private static final int MAX_PANE_TILES = 64;
+
+	/** heap used per pixel of a pane (merged image and its decoded copy) */
+	private static final int BYTES_PER_PIXEL = 8;
+
+	// store flattened tiles in FLAT folder
+	private boolean flatCache;
+
+	// re-encode only tile rows changed since the last build of a KAP file
+	private boolean incremental;
+
+	// compare decoded KAP rows with the source tiles
+	private boolean verifyPixels;
+
+	private long maxPanePixels;
+	private int paneThreads;
+
+	private int paneCount;
+
+	// lowest zoom level built from the tiles of zoom (pyramid mode if lower than zoom)
+	private int pyramidMinZoom;
+
+	// tiles with content received after this time are changed in this run
+	private long runStart;
+
+	// overlap download, flattening and encoding (see process())
+	private boolean pipelined;
+	private int pipelineQueue;
+	private TilePipeline pipeline;
+
+	// KAP files written by this run
+	private List<File> kapFiles = Collections.synchronizedList(new ArrayList<>());
 
 	public Downloader() {		
-		tiles = new ArrayList<SlippyTile>();
-		tilesMap = new HashMap<String, SlippyTile>();
 	}
 	
 	
@@ -47,10 +116,41 @@ public class Downloader {
 	 * @throws IOException
 	 */
 	public void init(String propFileName) throws IOException {
-		
+		init(propFileName, null);
+	}
+
+	/**
+	 * Initialize all input parameters from configuration file, sharing tile caches with other regions.
+	 * 
+	 * @param propFileName
+	 * @param caches open caches by download folder, the cache of this region is added if missing 
+	 * (null: open own cache, closed by {@link #close()})
+	 * @throws IOException
+	 */
+	public void init(String propFileName, Map<String, TileCache> caches) throws IOException {
 		Properties prop = loadProperties(propFileName);
+		startRun(prop);
+		init(prop, caches);
+	}
+
+	/**
+	 * Initialize all input parameters from given configuration. Process wide state (statistics,
+	 * log level, decoded tile cache) is not changed, so regions can be built at the same time (see {@link #startRun(Properties)}).
+	 * 
+	 * @param prop
+	 * @param caches see {@link #init(String, Map)}
+	 * @throws IOException
+	 */
+	public void init(Properties prop, Map<String, TileCache> caches) throws IOException {
+
+		this.runStart = System.currentTimeMillis();
 		
 		this.title = prop.getProperty("title").trim();
+		String outputDir = prop.getProperty("output.dir", "").trim();
+		if (!outputDir.isEmpty() && !outputDir.endsWith("/")) {
+			outputDir += "/";
+		}
+		this.home = outputDir + title;
 				
 		this.zoom = Integer.parseInt(prop.getProperty("zoom"));
 
@@ -69,102 +169,273 @@ public class Downloader {
 		// south east
 		this.x2 = getXTileNumber(south, east, zoom);
 		this.y2 = getYTileNumber(south, east, zoom);
+
+		// root folder for downloads, cache.dir is shared by all regions
+		String downloadFolder = prop.getProperty("cache.dir", home + "/src/").trim();
+		if (!downloadFolder.endsWith("/")) {
+			downloadFolder += "/";
+		}
+		String storeType = prop.getProperty("tile.store", "directory").trim();
+		if (caches == null) {
+			this.cache = new TileCache(downloadFolder, storeType);
+			this.ownsCache = true;
+		} else {
+			this.cache = caches.get(downloadFolder);
+			if (cache == null) {
+				cache = new TileCache(downloadFolder, storeType);
+				caches.put(downloadFolder, cache);
+			}
+		}
+		this.tileStore = cache.getStore();
+		this.freshness = cache.getFreshness();
+
+		this.downloadEngine = new TileDownloadEngine(prop, cache);
+
+		this.streaming = Boolean.parseBoolean(prop.getProperty("merge.streaming", "true").trim());
+
+		this.flatCache = Boolean.parseBoolean(prop.getProperty("flat.cache", "false").trim());
+		this.incremental = Boolean.parseBoolean(prop.getProperty("kap.incremental", "false").trim());
+		this.paletteMode = prop.getProperty("palette.mode", "reference").trim();
+		this.paletteColors = Integer.parseInt(prop.getProperty("palette.colors", ""+OctreeQuantizer.MAX_COLORS).trim());
+		this.paletteSample = Integer.parseInt(prop.getProperty("palette.sample", "4").trim());
+		this.verifyPixels = Boolean.parseBoolean(prop.getProperty("kap.verify.pixels", "false").trim());
+
+		this.paneThreads = Integer.parseInt(prop.getProperty("pane.threads", ""+Runtime.getRuntime().availableProcessors()).trim());
+		this.maxPanePixels = Long.parseLong(prop.getProperty("pane.maxPixels", "0").trim());
+		if (maxPanePixels <= 0) {
+			// use half of the heap for all panes processed at the same time
+			maxPanePixels = Runtime.getRuntime().maxMemory() / 2 / BYTES_PER_PIXEL / paneThreads;
+		}
+
+		this.pyramidMinZoom = Math.max(0, Math.min(zoom, Integer.parseInt(prop.getProperty("pyramid.minZoom", ""+zoom).trim())));
+		this.grid = new TileGrid(cache, zoom, x1, y1, x2, y2, pyramidMinZoom);
+
+		this.pipelined = Boolean.parseBoolean(prop.getProperty("pipeline", "true").trim());
+		this.pipelineQueue = Integer.parseInt(prop.getProperty("pipeline.queue", "4").trim());
 	}
 
 	
 
+	/**
+	 * Reset statistics, set the log level (log.level) and the size of the decoded tile cache 
+	 * (decode.cache.mb) for a new run of the process.
+	 */
+	static void startRun(Properties prop) {
+		Log.setLevel(prop.getProperty("log.level", "info"));
+		DecodedTileCache.setMaxBytes(Long.parseLong(prop.getProperty("decode.cache.mb", "64").trim()) << 20);
+		Stats.reset();
+	}
+
+	/**
+	 * Download all tiles of the region. In pyramid mode tiles of lower zoom levels are downloaded 
+	 * only where the region does not cover all four tiles of the next level (edges), all others 
+	 * are built by {@link #flattenLayers()}.
+	 * 
+	 * @throws IOException
+	 */
 	public void downloadLayers() throws IOException {		
-		// root folder for downloads
-		String downloadFolder = title + "/src/";
-		
-		for (int x=x1; x<=x2; x++) {
-			for (int y=y1; y<=y2; y++) {				
-				SlippyTile tile = new SlippyTile(downloadFolder, x, y, zoom);
-				tiles.add(tile);
-				tilesMap.put(tile.getKey(), tile);			
-				tile.download();
-			}
-		}		
+		downloadEngine.download(createTiles());
+	}
+
+	String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return folder of the KAP files, sources and report of the region
+	 */
+	String getHome() {
+		return home;
+	}
+
+	/**
+	 * @return KAP files written by this run (in no particular order)
+	 */
+	List<File> getKapFiles() {
+		synchronized (kapFiles) {
+			return new ArrayList<>(kapFiles);
+		}
+	}
+
+	TileCache getCache() {
+		return cache;
+	}
+
+	TileDownloadEngine getDownloadEngine() {
+		return downloadEngine;
+	}
+
+	int getPaneThreads() {
+		return paneThreads;
+	}
+
+	/**
+	 * Create tiles of all zoom levels of the region.
+	 * 
+	 * @return tiles to be downloaded
+	 */
+	List<SlippyTile> createTiles() {
+		List<SlippyTile> download = grid.tiles().filter(tile -> !grid.isCovered(tile)).collect(Collectors.toList());
+
+		if (pyramidMinZoom < zoom) {
+			System.out.println("Pyramid zoom ["+pyramidMinZoom+"-"+zoom+"]: tiles built from zoom ["+zoom+"] ["+(grid.size()-download.size())+"], downloaded ["+download.size()+"]");
+		}
+		return download;
 	}
 
 	public void flattenLayers() throws IOException {
-		for (SlippyTile tile : tiles) {
-			if (tile.isDownloaded()) {
-				tile.flatten();
-			} else {
-				System.out.println("MISSING: " + tile.toString());
+		if (pyramidMinZoom < zoom) {
+			// tiles with new content in this run (first download or changed on the server), all 
+			// tiles if records of a previous run may be lost
+			grid.tiles().filter(tile -> !grid.isCovered(tile) && (!freshness.isComplete()
+					|| freshness.changedSince(tile.getZoom(), tile.getX(), tile.getY(), runStart - 1)))
+					.forEach(tile -> grid.setChanged(tile.getZoom(), tile.getX(), tile.getY()));
+		}
+
+		if (!flatCache) {
+			System.out.println("Flat tiles are not cached (tiles are flattened while merging)");
+		} else {
+			for (SlippyTile tile : (Iterable<SlippyTile>) grid.tiles()::iterator) {
+				if (grid.isCovered(tile)) {
+					continue;
+				}
+				if (tile.isDownloaded()) {
+					tile.flatten();
+				} else {
+					Log.warn(() -> "MISSING: " + tile.toString());
+				}
 			}
 		}
+
+		buildPyramid();
+	}
+
+	/**
+	 * Build the tiles of the lower zoom levels from the next level, level by level and the tiles 
+	 * of a level in parallel. A tile is built again only if one of its four tiles changed.
+	 * 
+	 * @throws IOException
+	 */
+	private void buildPyramid() throws IOException {
+		for (int z=zoom-1; z>=pyramidMinZoom; z--) {
+			final int level = z;
+			List<SlippyTile> levelTiles = grid.tiles(level).filter(grid::isCovered).collect(Collectors.toList());
+
+			AtomicInteger built = new AtomicInteger();
+			try {
+				levelTiles.parallelStream().forEach(tile -> {
+					SlippyTile[] children = new SlippyTile[4];
+					boolean dirty = !tile.has(TileLayer.FLAT);
+					for (int i=0; i<4; i++) {
+						int x = 2*tile.getX() + i % 2;
+						int y = 2*tile.getY() + i / 2;
+						children[i] = grid.get(level+1, x, y);
+						dirty |= grid.isChanged(level+1, x, y);
+					}
+					if (dirty) {
+						try {
+							tile.downsample(children);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						grid.setChanged(level, tile.getX(), tile.getY());
+						built.incrementAndGet();
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			Stats.count("pyramid.tiles", built.get());
+			System.out.println("Zoom ["+level+"]: built ["+built+"/"+levelTiles.size()+"] tiles from zoom ["+(level+1)+"]");
+		}
 	}
 
 
 
-	private List<String> mergeAll() throws IOException {
-			
-		return merge(x1, y1, x2, y2);
-		
-		/*
-		int maxTilesMergedPerImage = 8;
-
-		int chunk = Math.min(maxTilesMergedPerImage, (Math.min((x2-x1),(y2-y1))));
-
-		int numberOfChunksX = 1 + (x2-x1) / chunk;
-		int numberOfChunksY = 1 + (y2-y1) / chunk;
-
-		for (int offsY = 0; offsY < numberOfChunksY; offsY ++ ) {
-			for (int offsX = 0; offsX < numberOfChunksX; offsX ++ ) {
-				int a1 = Math.min(x2, x1+offsX*chunk);
-				int b1 = Math.min(y2, y1+offsY*chunk);
-				int a2 = Math.min(x2, a1+chunk);
-				int b2 = Math.min(y2, b1+chunk);				
-						
-				// merge selected area into single file
-				merge(a1, b1, a2, b2);
+	/**
+	 * Split the tile grid of every zoom level into panes that fit into the pixel budget. A pane 
+	 * never exceeds {@link #MAX_PANE_TILES} tiles in each direction (row numbers and run lengths 
+	 * of the KAP encoding are limited to 14 bits).
+	 * 
+	 * @return panes in row order, highest zoom first
+	 */
+	private List<Pane> mergeAll() {
+		List<Pane> panes = new ArrayList<>();
+		for (int z=zoom; z>=pyramidMinZoom; z--) {
+			panes.addAll(mergeAll(z, x1>>(zoom-z), y1>>(zoom-z), x2>>(zoom-z), y2>>(zoom-z)));
+		}
+		return panes;
+	}
+
+	private List<Pane> mergeAll(int zoom, int x1, int y1, int x2, int y2) {
+
+		int tilesPerPane = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxPanePixels / (256*256)));
+
+		int gridWidth = 1 + x2 - x1;
+		int gridHeight = 1 + y2 - y1;
+
+		int chunkX = gridWidth;
+		int chunkY = gridHeight;
+		if ((long) gridWidth * gridHeight > tilesPerPane || gridWidth > MAX_PANE_TILES || gridHeight > MAX_PANE_TILES) {
+			int chunk = Math.max(1, Math.min(MAX_PANE_TILES, (int) Math.sqrt(tilesPerPane)));
+			chunkX = Math.min(chunk, gridWidth);
+			chunkY = Math.min(chunk, gridHeight);
+		}
+
+		List<Pane> panes = new ArrayList<>();
+		for (int b1 = y1; b1 <= y2; b1 += chunkY) {
+			for (int a1 = x1; a1 <= x2; a1 += chunkX) {
+				int a2 = Math.min(x2, a1+chunkX-1);
+				int b2 = Math.min(y2, b1+chunkY-1);
+				panes.add(new Pane("combined_"+zoom+"_"+a1+"_"+b1, zoom, a1, b1, a2, b2));
 			}
 		}
-		*/
-		
+
+		System.out.println("Panes ["+panes.size()+"] of max. ["+chunkX+"x"+chunkY+"] tiles"+(pyramidMinZoom < this.zoom ? " (zoom "+zoom+")" : ""));
+		return panes;
 	}
 
 	/**
-	 * Merge all tiles into bigger image files
+	 * Merge all tiles into bigger image files. In streaming mode only the bounding box file is 
+	 * written, the image is composed later while compressing (see {@link TileBandRaster}).
 	 * 
-	 * @param a1 left
-	 * @param b1 top
-	 * @param a2 right
-	 * @param b2 bottom
+	 * @param pane
 	 * @throws IOException
 	 */
-	private List<String> merge(int a1, int b1, int a2, int b2) throws IOException {
-		
-		List<String> resMaps = new ArrayList<>();
-		int mergedWidth = 256*(1+a2-a1);
-		int mergedHeight = 256*(1+b2-b1);
+	private void merge(Pane pane) throws IOException {
 
-		BufferedImage combined = new BufferedImage(mergedWidth, mergedHeight, BufferedImage.TYPE_INT_ARGB);		
-		Graphics g = combined.getGraphics();		
+		int a1 = pane.a1;
+		int b1 = pane.b1;
+		int a2 = pane.a2;
+		int b2 = pane.b2;
+		int zoom = pane.zoom;
 
-		for (int b=b1; b<=b2; b++) {
-			for (int a=a1; a<=a2; a++) {
-				String key = SlippyTile.getKey(zoom, a, b);
-				SlippyTile tile = tilesMap.get(key);
-				if (tile.isDownloaded()) {
-					tile.draw(g, (tile.getX()-a1)*256, (tile.getY()-b1)*256);
-				} else {
-					System.out.println("MISSING: " + tile.toString());
+		String mapName = pane.getMapName();
+		
+		String outputDir = home+"/src/COMBINED/";
+		new File(outputDir).mkdirs();
+
+		if (!streaming) {
+			long start = Stats.start();
+			BufferedImage combined = new BufferedImage(pane.getWidth(), pane.getHeight(), BufferedImage.TYPE_INT_ARGB);		
+			Graphics g = combined.getGraphics();		
+
+			for (int b=b1; b<=b2; b++) {
+				for (int a=a1; a<=a2; a++) {
+					SlippyTile tile = grid.get(zoom, a, b);
+					if (tile.isDownloaded()) {
+						tile.draw(g, (tile.getX()-a1)*256, (tile.getY()-b1)*256);
+					} else {
+						Log.warn(() -> "MISSING: " + tile.toString());
+					}
 				}
 			}
-		}
+			Stats.end(Stage.MERGE, start, 0, (long) pane.getWidth() * pane.getHeight());
 
-		String mapName = "combined_"+zoom+"_"+a1+"_"+b1;
-		resMaps.add(mapName);
-		
-		String outputDir = title+"/src/COMBINED/";
-		
-		// Save as new image
-		File mergedFile = new File(outputDir + mapName +".png");
-		mergedFile.getParentFile().mkdirs();
-		ImageIO.write(combined, "PNG", mergedFile);
+			// Save as new image
+			File mergedFile = new File(outputDir + mapName +".png");
+			ImageIO.write(combined, "PNG", mergedFile);
+		}
 
 		//save bounding Boxfile
 		FileOutputStream fos = new FileOutputStream(new File(outputDir + mapName+".txt"));		
@@ -172,26 +443,25 @@ public class Downloader {
 
 		String keyFirst = SlippyTile.getKey(zoom, a1, b1);
 		String keyLast = SlippyTile.getKey(zoom, a2, b2);
-		SlippyTile firstTile = tilesMap.get(keyFirst);		
-		SlippyTile lastTile = tilesMap.get(keyLast);
+		double north = grid.getNorth(zoom, b1);
+		double west = grid.getWest(zoom, a1);
+		double south = grid.getSouth(zoom, b2);
+		double east = grid.getEast(zoom, a2);
 
 		//double scale = 4200.0;
 		
-		double resolution = 156543.03 * Math.cos(Math.toRadians(firstTile.getBoundingBox().north)) / Math.pow(2 , zoom);
+		double resolution = 156543.03 * Math.cos(Math.toRadians(north)) / Math.pow(2 , zoom);
 		System.out.println("Resolution: " + resolution);
 		System.out.println("Screen DPI: " + screen_dpi);
 		double scale = Math.round(screen_dpi * 39.37 * resolution);
 		System.out.println("Scale: " + scale);
 		
 		fos.write(("\n"+keyFirst+"").getBytes());
-		fos.write(("\n"+firstTile.getBoundingBox().north+","+firstTile.getBoundingBox().west+"").getBytes());
+		fos.write(("\n"+north+","+west+"").getBytes());
 		fos.write(("\n"+keyLast+"").getBytes());
-		fos.write(("\n"+lastTile.getBoundingBox().south+","+lastTile.getBoundingBox().east+"").getBytes());
+		fos.write(("\n"+south+","+east+"").getBytes());
 		fos.write(("\n"+scale+"").getBytes());
 		fos.close();
-
-		return resMaps;
-
 	}
 
 	public static int getXTileNumber(final double lat, final double lon, final int zoom) {
@@ -224,32 +494,244 @@ public class Downloader {
 
 
 
+	/**
+	 * Download, flatten and create the KAP files. The stages overlap (see {@link TilePipeline}) 
+	 * unless disabled or all tiles are needed before encoding can start (pyramid levels, generated 
+	 * palette, merged image files), then they run one after the other.
+	 * @throws IOException
+	 */
+	public void process() throws IOException {
+		if (!pipelined || pyramidMinZoom < zoom || !streaming || "octree".equals(paletteMode)) {
+			downloadLayers();
+			flattenLayers();
+			saveKapFile();
+			return;
+		}
+
+		System.out.println("Pipeline: tiles are flattened and encoded while downloading (queue ["+pipelineQueue+"] rows)");
+		pipeline = new TilePipeline(grid, flatCache, pipelineQueue);
+		pipeline.start();
+
+		List<Pane> panes = preparePanes();
+		System.out.println("-- START (processing kap) --");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(paneThreads, panes.size()));
+		try {
+			List<Future<Void>> futures = submitPanes(panes, executor);
+			try {
+				downloadEngine.download(createTiles(), pipeline::downloaded);
+			} catch (IOException e) {
+				pipeline.fail(e);
+				throw e;
+			}
+			await(futures);
+		} finally {
+			executor.shutdownNow();
+			pipeline.close();
+		}
+
+		Log.flush();
+		System.out.println("-- END (processing kap) --");
+	}
+
 	public void saveKapFile() throws IOException {
-		
-		List<String> fileNames = mergeAll();
+
+		List<Pane> panes = preparePanes();
 
 		System.out.println("-- START (processing kap) --");
-		for (String mapName: fileNames) {			
-			System.out.println("- Processing ["+mapName+"] -");			
-			
-			String definitionFile = "/src/COMBINED/"+mapName+".txt";
-			KapFile kap = new KapFile(title, definitionFile, title, screen_dpi);		
-			
-			kap.parseInputSlippy();
-			
-			String outputDirectory = title;
-			kap.dump(outputDirectory);
 
-			kap.verify();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(paneThreads, panes.size()));
+		try {
+			await(submitPanes(panes, executor));
+		} finally {
+			executor.shutdownNow();
 		}
 		
+		Log.flush();
 		System.out.println("-- END (processing kap) --");
 		
 	}
 
+	/**
+	 * Split region into panes and create the palette (if generated).
+	 * @return panes to be passed to {@link #submitPanes(List, ExecutorService)}
+	 */
+	List<Pane> preparePanes() throws IOException {
+		List<Pane> panes = mergeAll();
+		paneCount = panes.size();
+
+		if ("octree".equals(paletteMode)) {
+			palette = buildPalette();
+		}
+		return panes;
+	}
+
+	/**
+	 * Create KAP files of given panes on given executor.
+	 * @return one future per pane
+	 */
+	List<Future<Void>> submitPanes(List<Pane> panes, ExecutorService executor) {
+		List<Future<Void>> futures = new ArrayList<>();
+		for (final Pane pane: panes) {
+			futures.add(executor.submit(() -> {
+				saveKapFile(pane);
+				return null;
+			}));
+		}
+		return futures;
+	}
+
+	/**
+	 * Wait for all futures.
+	 * @throws IOException first error of any of the tasks
+	 */
+	static void await(List<Future<Void>> futures) throws IOException {
+		try {
+			for (Future<Void> f : futures) {
+				f.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	private void saveKapFile(Pane pane) throws IOException {
+		String mapName = pane.getMapName();
+		System.out.println("- Processing ["+pane+"] -");			
+
+		merge(pane);
+
+		String definitionFile = "/src/COMBINED/"+mapName+".txt";
+		KapFile kap = new KapFile(home, definitionFile, title, screen_dpi);		
+		if (palette != null) {
+			kap.setPalette(palette);
+		}
+		if (pyramidMinZoom < zoom) {
+			kap.setChartFormat(KapFile.getChartFormat(kap.getScale()));
+		}
+		
+		if (streaming) {
+			kap.setRaster(new TileBandRaster(grid, pane.zoom, pane, pipeline));
+		} else {
+			kap.parseInputSlippy();
+		}
+
+		File previous = kap.getOutputFile(home);
+		if (incremental && previous.exists() && !freshness.isComplete()) {
+			System.out.println("Tile metadata of the previous run is incomplete (not closed), full rebuild of ["+mapName+"]");
+		} else if (incremental && previous.exists()) {
+			if (pipeline != null) {
+				// changes are known when the tiles of the pane are downloaded
+				pipeline.awaitRows(pane.b1, pane.b2);
+			}
+			kap.setIncremental(getChangedBands(pane, previous.lastModified()));
+		}
+		
+		String outputDirectory = home;
+		kap.dump(outputDirectory);
+
+		kap.verify(verifyPixels);
+		kapFiles.add(kap.getOutputFile(home));
+	}
+
+
+
+	/**
+	 * Create palette for all tiles of the region: every n-th pixel of each flattened tile is 
+	 * sampled (tiles in parallel) and reduced by an octree quantizer. Histograms are large, so 
+	 * threads take them from a pool (at most one per thread) and they are merged at the end.
+	 */
+	private List<Color> buildPalette() throws IOException {
+		System.out.println("Sampling tiles for palette (every ["+paletteSample+"] pixel)");
+		long start = Stats.start();
+		Queue<OctreeQuantizer> quantizers = new ConcurrentLinkedQueue<>();
+		try {
+			grid.tiles().parallel().filter(SlippyTile::isDownloaded).forEach(tile -> {
+				OctreeQuantizer q = quantizers.poll();
+				if (q == null) {
+					q = new OctreeQuantizer();
+				}
+				try {
+					tile.sample(q, paletteSample);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} finally {
+					quantizers.add(q);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		OctreeQuantizer quantizer = quantizers.poll();
+		if (quantizer == null) {
+			quantizer = new OctreeQuantizer();
+		}
+		for (OctreeQuantizer q : quantizers) {
+			quantizer.merge(q);
+		}
+		List<Color> result = quantizer.buildPalette(paletteColors);
+		Stats.end(Stage.QUANTIZE, start, 0, quantizer.getPixels());
+		System.out.println("Palette of ["+result.size()+"] colors from ["+quantizer.getPixels()+"] pixels");
+		return result;
+	}
+
+	/**
+	 * @return tile rows of the pane with at least one tile changed after given time 
+	 * (or built again in this run, for pyramid levels)
+	 */
+	private BitSet getChangedBands(Pane pane, long since) {
+		BitSet changed = new BitSet();
+		for (int b=pane.b1; b<=pane.b2; b++) {
+			for (int a=pane.a1; a<=pane.a2; a++) {
+				if (freshness.changedSince(pane.zoom, a, b, since) 
+						|| (pane.zoom < zoom && grid.isChanged(pane.zoom, a, b))) {
+					changed.set(b - pane.b1);
+					break;
+				}
+			}
+		}
+		System.out.println("Changed tile rows of ["+pane.getMapName()+"]: ["+changed.cardinality()+"/"+(1+pane.b2-pane.b1)+"]");
+		return changed;
+	}
+
+	/**
+	 * Release connections and tile store (unless shared with other regions).
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		downloadEngine.close();
+		grid.close();
+		if (ownsCache) {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Print statistics and write them to run-report.json.
+	 * @throws IOException
+	 */
+	public void writeReport() throws IOException {
+		Log.flush();
+		Stats.printSummary();
+		Map<String, Object> info = new LinkedHashMap<>();
+		info.put("title", title);
+		info.put("zoom", zoom);
+		info.put("minZoom", pyramidMinZoom);
+		info.put("tiles", grid.size());
+		info.put("panes", paneCount);
+		info.put("streaming", streaming);
+		info.put("palette", paletteMode);
+		Stats.writeReport(new File(home, "run-report.json"), info);
+	}
+
 
 
-	private Properties loadProperties(String propFileName) throws IOException {
+	static Properties loadProperties(String propFileName) throws IOException {
 		Properties prop = new Properties();
 		InputStream inputStream;
 
@@ -1,6 +1,10 @@
 package org.dynia.seamap.downloader;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
 
 public class DownloaderApp {
 
@@ -10,6 +14,36 @@ public class DownloaderApp {
 			System.err.println("Please specify config file!");
 			return;
 		}
+
+		// options are not taken as config files
+		for (int i=0; i<args.length; i++) {
+			if (args[i].startsWith("--") && !(i == 0 && "--serve".equals(args[i]))) {
+				System.err.println("Unknown option: " + args[i]);
+				return;
+			}
+		}
+
+		if ("--serve".equals(args[0])) {
+			// chart service: DownloaderApp --serve service.properties
+			if (args.length != 2) {
+				System.err.println("Please specify exactly one service config file: --serve service.properties");
+				return;
+			}
+			Properties prop = new Properties();
+			try (InputStream in = new FileInputStream(args[1])) {
+				prop.load(in);
+			}
+			new ChartService(prop).start();
+			return;
+		}
+
+		if (args.length > 1) {
+			// batch mode: one config file per region
+			System.out.println("-- BATCH ["+args.length+" regions] --");
+			new Batch(Arrays.asList(args)).run();
+			System.out.println("SUCCESSFUL CREATION OF KAP FILES.\nDONE.");
+			return;
+		}
 		
 		System.out.println("-- DOWNLOADING --");
 		Downloader d = new Downloader();
@@ -17,11 +51,13 @@ public class DownloaderApp {
 		// initialize parameters from config file
 		d.init(args[0]);
 		
-		// connect to the Internet and download all map fragments
-		d.downloadLayers();
-		
-		d.flattenLayers();
-		d.saveKapFile();
+		// connect to the Internet, download all map fragments and create the KAP files
+		try {
+			d.process();
+		} finally {
+			d.close();
+		}
+		d.writeReport();
 		System.out.println("SUCCESSFUL CREATION OF KAP FILE:\n- See downloaded sources in 'src' folder.\n- See resulting .kap file.\nDONE.");
 
 	}
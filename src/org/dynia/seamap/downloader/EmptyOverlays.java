@@ -0,0 +1,107 @@
+package org.dynia.seamap.downloader;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content hashes (SHA-1) of sea mark tiles known to be fully transparent, kept in &lt;root&gt;SEA.empty.
+ * 
+ * Most sea mark tiles are empty and the server sends the same few files for all of them. A tile is 
+ * found to be empty when it is composed (decoded anyway), downloads of the same content are stored 
+ * as tiles of length 0 (see {@link SlippyTile#isEmpty(TileLayer)}), they are not decoded or drawn at all.
+ * Only tiles with the length of a known empty tile are hashed.
+ */
+class EmptyOverlays {
+
+	private File file;
+
+	private Set<String> hashes = ConcurrentHashMap.newKeySet();
+
+	private Set<Integer> lengths = ConcurrentHashMap.newKeySet();
+
+	EmptyOverlays(String rootPath) throws IOException {
+		this.file = new File(rootPath + TileLayer.SEA.name() + ".empty");
+		if (file.exists()) {
+			try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+				String line;
+				while ((line = br.readLine()) != null) {
+					line = line.trim();
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						hashes.add(line);
+						lengths.add(Integer.valueOf(line.substring(0, colon)));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the content is known to be an empty tile
+	 */
+	boolean isKnown(ByteBuffer data) {
+		return lengths.contains(data.remaining()) && hashes.contains(hash(data));
+	}
+
+	/**
+	 * Remember content of an empty tile.
+	 */
+	void add(ByteBuffer data) throws IOException {
+		String hash = hash(data);
+		if (hashes.add(hash)) {
+			lengths.add(data.remaining());
+			synchronized (this) {
+				file.getParentFile().mkdirs();
+				try (BufferedWriter bw = new BufferedWriter(new FileWriter(file, true))) {
+					bw.write(hash + "\n");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if all pixels of the image are fully transparent
+	 */
+	static boolean isTransparent(BufferedImage image) {
+		if (!image.getColorModel().hasAlpha()) {
+			return false;
+		}
+		int width = image.getWidth();
+		int[] row = new int[width];
+		for (int y=0; y<image.getHeight(); y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int rgb : row) {
+				if ((rgb >>> 24) != 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String hash(ByteBuffer data) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-1");
+			sha.update(data.duplicate());
+			byte[] digest = sha.digest();
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b & 0xFF));
+			}
+			return data.remaining() + ":" + sb;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package org.dynia.seamap.downloader;
+
+/**
+ * Limits the parallel requests to one tile server (AIMD).
+ * 
+ * The limit grows by one request per limit successful responses (additive increase) and is halved 
+ * when the server is overloaded (429, 503, timeouts), but only once for all requests started before 
+ * the decrease (multiplicative decrease). A Retry-After sent by the server pauses all requests to 
+ * the host.
+ */
+class HostRateController {
+
+	private String host;
+	private int maxLimit;
+
+	private double limit;
+	private int inFlight;
+	private long pausedUntil;
+
+	// incremented on every decrease, requests started before do not decrease again
+	private long generation;
+
+	private int overloads;
+
+	/**
+	 * @param limit initial number of parallel requests
+	 * @param maxLimit max. number of parallel requests
+	 */
+	HostRateController(String host, int limit, int maxLimit) {
+		this.host = host;
+		this.limit = Math.max(1, limit);
+		this.maxLimit = Math.max(maxLimit, (int) this.limit);
+	}
+
+	/**
+	 * Wait until a request may be started.
+	 * @return token to be passed to {@link #success(long)}, {@link #overload(long, long)} or {@link #failed(long)}
+	 * @throws InterruptedException
+	 */
+	synchronized long acquire() throws InterruptedException {
+		while (true) {
+			long pause = pausedUntil - System.currentTimeMillis();
+			if (pause > 0) {
+				wait(pause);
+			} else if (inFlight >= (int) limit) {
+				wait();
+			} else {
+				break;
+			}
+		}
+		inFlight++;
+		return generation;
+	}
+
+	synchronized void success(long token) {
+		inFlight--;
+		if (limit < maxLimit) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Server is overloaded.
+	 * @param retryAfter pause requested by the server in milliseconds (0 if none)
+	 */
+	synchronized void overload(long token, long retryAfter) {
+		inFlight--;
+		overloads++;
+		if (token == generation) {
+			limit = Math.max(1, limit / 2);
+			generation++;
+		}
+		if (retryAfter > 0) {
+			pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfter);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Request failed for another reason (limit is not changed).
+	 */
+	synchronized void failed(long token) {
+		inFlight--;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Host ["+host+"]: parallel requests ["+(int) limit+"/"+maxLimit+"], overloaded ["+overloads+"]";
+	}
+
+}
@@ -0,0 +1,51 @@
+package org.dynia.seamap.downloader;
+
+/**
+ * Rectangular range of tiles that ends up in a single KAP file.
+ */
+public class Pane {
+
+	final int zoom;
+	final int a1, b1;
+	final int a2, b2;
+
+	private String mapName;
+
+	/**
+	 * @param zoom zoom level of the tiles
+	 * @param a1 left
+	 * @param b1 top
+	 * @param a2 right
+	 * @param b2 bottom
+	 */
+	public Pane(String mapName, int zoom, int a1, int b1, int a2, int b2) {
+		this.mapName = mapName;
+		this.zoom = zoom;
+		this.a1 = a1;
+		this.b1 = b1;
+		this.a2 = a2;
+		this.b2 = b2;
+	}
+
+	public String getMapName() {
+		return mapName;
+	}
+
+	public int getZoom() {
+		return zoom;
+	}
+
+	public int getWidth() {
+		return 256*(1+a2-a1);
+	}
+
+	public int getHeight() {
+		return 256*(1+b2-b1);
+	}
+
+	@Override
+	public String toString() {
+		return mapName + " [" + a1 + "," + b1 + " - " + a2 + "," + b2 + "]";
+	}
+
+}
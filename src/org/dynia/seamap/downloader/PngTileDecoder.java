@@ -0,0 +1,341 @@
+package org.dynia.seamap.downloader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder for the PNG variants returned by tile servers: 8 bit RGB, 8 bit RGBA and indexed color
+ * (1 to 8 bit) with optional transparency (tRNS), not interlaced.
+ *
+ * Scanlines are inflated and unfiltered one at a time and written as ARGB (not premultiplied) into
+ * an int[] given by the caller. The inflater and the scanline buffers are kept per thread, so
+ * decoding a tile into an existing array allocates nothing. Other variants (grayscale, 16 bit,
+ * interlaced, RGB with tRNS) are left to ImageIO, see {@link #read(ByteBuffer)}.
+ */
+public class PngTileDecoder {
+
+	private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504C5445;
+	private static final int TRNS = 0x74524E53;
+	private static final int IDAT = 0x49444154;
+	private static final int IEND = 0x49454E44;
+
+	private static final int RGB = 2;
+	private static final int INDEXED = 3;
+	private static final int RGBA = 6;
+
+	private static final int[] MASKS = { 0xFF0000, 0xFF00, 0xFF, 0xFF000000 };
+
+	private static final ThreadLocal<PngTileDecoder> DECODERS = ThreadLocal.withInitial(PngTileDecoder::new);
+
+	private final Inflater inflater = new Inflater();
+	private final int[] palette = new int[256];
+	private byte[] input = new byte[0];
+	private byte[] previous = new byte[0];
+	private byte[] current = new byte[0];
+
+	private int width;
+	private int height;
+	private int bitDepth;
+	private int colorType;
+
+	/**
+	 * @return decoder of the current thread
+	 */
+	public static PngTileDecoder get() {
+		return DECODERS.get();
+	}
+
+	/**
+	 * Decode a PNG into a new image of type {@link BufferedImage#TYPE_INT_ARGB}.
+	 *
+	 * @return the image or null if the variant is not supported (use ImageIO)
+	 * @throws IOException if the data is not a valid PNG
+	 */
+	public static BufferedImage read(ByteBuffer data) throws IOException {
+		PngTileDecoder decoder = get();
+		int[] pixels = decoder.decode(data, null);
+		if (pixels == null) {
+			return null;
+		}
+		return createImage(pixels, decoder.width, decoder.height);
+	}
+
+	/**
+	 * Wrap ARGB pixels into an image without copying them.
+	 */
+	public static BufferedImage createImage(int[] pixels, int width, int height) {
+		DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+		WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, MASKS, null);
+		return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+	}
+
+	/**
+	 * Return the ARGB pixels of an image. For images created by this decoder (and other
+	 * {@link BufferedImage#TYPE_INT_ARGB} images) this is the backing array, which must not be modified.
+	 */
+	public static int[] getPixels(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		if (image.getType() == BufferedImage.TYPE_INT_ARGB && buffer instanceof DataBufferInt
+				&& buffer.getSize() == image.getWidth() * image.getHeight() && image.getRaster().getParent() == null) {
+			return ((DataBufferInt) buffer).getData();
+		}
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+	}
+
+	/**
+	 * Decode a PNG into given array, row by row.
+	 *
+	 * @param data PNG file (position is not changed)
+	 * @param pixels target for width x height ARGB pixels, a new array is allocated if null or too small
+	 * @return the array with the pixels or null if the variant is not supported
+	 * @throws IOException if the data is not a valid PNG
+	 */
+	public int[] decode(ByteBuffer data, int[] pixels) throws IOException {
+		ByteBuffer buf = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+		if (buf.remaining() < 8 || buf.getLong() != SIGNATURE) {
+			throw new IOException("Not a PNG file");
+		}
+
+		width = 0;
+		inflater.reset();
+		int rowBytes = 0;
+		int bpp = 0;
+		int row = 0;
+		int rowPos = 0;
+
+		try {
+			while (buf.remaining() >= 8) {
+				int length = buf.getInt();
+				int type = buf.getInt();
+				if (length < 0 || length > buf.remaining()) {
+					throw new IOException("Truncated PNG chunk");
+				}
+				int chunkEnd = buf.position() + length;
+
+				switch (type) {
+				case IHDR:
+					if (!readHeader(buf)) {
+						return null;
+					}
+					int bits = (colorType == RGB ? 3 : colorType == RGBA ? 4 : 1) * bitDepth;
+					rowBytes = (width * bits + 7) / 8;
+					bpp = Math.max(1, bits / 8);
+					if (current.length < rowBytes + 1) {
+						current = new byte[rowBytes + 1];
+						previous = new byte[rowBytes + 1];
+					}
+					Arrays.fill(previous, 0, rowBytes + 1, (byte) 0);
+					Arrays.fill(palette, 0xFF000000);
+					if (pixels == null || pixels.length < width * height) {
+						pixels = new int[width * height];
+					}
+					break;
+				case PLTE:
+					for (int i=0; i<Math.min(256, length / 3); i++) {
+						palette[i] = 0xFF000000 | (buf.get() & 0xFF) << 16 | (buf.get() & 0xFF) << 8 | (buf.get() & 0xFF);
+					}
+					break;
+				case TRNS:
+					if (colorType != INDEXED) {
+						return null;
+					}
+					for (int i=0; i<Math.min(256, length); i++) {
+						palette[i] = (palette[i] & 0xFFFFFF) | (buf.get() & 0xFF) << 24;
+					}
+					break;
+				case IDAT:
+					if (width == 0) {
+						throw new IOException("IDAT before IHDR");
+					}
+					setInput(buf, length);
+					while (row < height && !inflater.needsInput()) {
+						int n = inflater.inflate(current, rowPos, rowBytes + 1 - rowPos);
+						if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+							break;
+						}
+						rowPos += n;
+						if (rowPos == rowBytes + 1) {
+							unfilter(rowBytes, bpp);
+							convert(pixels, row * width);
+							byte[] t = previous;
+							previous = current;
+							current = t;
+							row++;
+							rowPos = 0;
+						}
+					}
+					break;
+				case IEND:
+					buf.position(buf.limit());
+					continue;
+				default:
+					break;
+				}
+
+				// skip rest of the chunk and the CRC
+				buf.position(Math.min(buf.limit(), chunkEnd + 4));
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt PNG data", e);
+		}
+
+		if (width == 0 || row < height) {
+			throw new IOException("Truncated PNG image data");
+		}
+		return pixels;
+	}
+
+	/**
+	 * @return width of the last decoded image
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return height of the last decoded image
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return false if the variant is not supported
+	 */
+	private boolean readHeader(ByteBuffer buf) throws IOException {
+		int w = buf.getInt();
+		int h = buf.getInt();
+		bitDepth = buf.get() & 0xFF;
+		colorType = buf.get() & 0xFF;
+		int compression = buf.get();
+		int filter = buf.get();
+		int interlace = buf.get();
+		if (w <= 0 || h <= 0 || (long) w * h > Integer.MAX_VALUE / 4 || compression != 0 || filter != 0) {
+			throw new IOException("Invalid PNG header");
+		}
+		if (interlace != 0) {
+			return false;
+		}
+		if (colorType == INDEXED) {
+			if (bitDepth != 1 && bitDepth != 2 && bitDepth != 4 && bitDepth != 8) {
+				return false;
+			}
+		} else if ((colorType != RGB && colorType != RGBA) || bitDepth != 8) {
+			return false;
+		}
+		width = w;
+		height = h;
+		return true;
+	}
+
+	private void setInput(ByteBuffer buf, int length) {
+		if (buf.hasArray()) {
+			inflater.setInput(buf.array(), buf.arrayOffset() + buf.position(), length);
+		} else {
+			if (input.length < length) {
+				input = new byte[length];
+			}
+			buf.duplicate().get(input, 0, length);
+			inflater.setInput(input, 0, length);
+		}
+	}
+
+	/**
+	 * Reverse the filter of the current scanline (first byte is the filter type).
+	 */
+	private void unfilter(int rowBytes, int bpp) throws IOException {
+		byte[] cur = current;
+		byte[] prev = previous;
+		int end = rowBytes + 1;
+		switch (cur[0]) {
+		case 0:
+			break;
+		case 1:
+			for (int i=1+bpp; i<end; i++) {
+				cur[i] += cur[i-bpp];
+			}
+			break;
+		case 2:
+			for (int i=1; i<end; i++) {
+				cur[i] += prev[i];
+			}
+			break;
+		case 3:
+			for (int i=1; i<=bpp; i++) {
+				cur[i] += (prev[i] & 0xFF) >> 1;
+			}
+			for (int i=1+bpp; i<end; i++) {
+				cur[i] += ((cur[i-bpp] & 0xFF) + (prev[i] & 0xFF)) >> 1;
+			}
+			break;
+		case 4:
+			for (int i=1; i<=bpp; i++) {
+				cur[i] += prev[i];
+			}
+			for (int i=1+bpp; i<end; i++) {
+				cur[i] += paeth(cur[i-bpp] & 0xFF, prev[i] & 0xFF, prev[i-bpp] & 0xFF);
+			}
+			break;
+		default:
+			throw new IOException("Invalid PNG filter type " + cur[0]);
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int pa = Math.abs(b - c);
+		int pb = Math.abs(a - c);
+		int pc = Math.abs(a + b - 2 * c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * Convert the current (unfiltered) scanline to ARGB.
+	 */
+	private void convert(int[] pixels, int offset) {
+		byte[] cur = current;
+		int w = width;
+		switch (colorType) {
+		case RGB:
+			for (int x=0, i=1; x<w; x++, i+=3) {
+				pixels[offset + x] = 0xFF000000 | (cur[i] & 0xFF) << 16 | (cur[i+1] & 0xFF) << 8 | (cur[i+2] & 0xFF);
+			}
+			break;
+		case RGBA:
+			for (int x=0, i=1; x<w; x++, i+=4) {
+				pixels[offset + x] = (cur[i+3] & 0xFF) << 24 | (cur[i] & 0xFF) << 16 | (cur[i+1] & 0xFF) << 8 | (cur[i+2] & 0xFF);
+			}
+			break;
+		default:
+			if (bitDepth == 8) {
+				for (int x=0; x<w; x++) {
+					pixels[offset + x] = palette[cur[x+1] & 0xFF];
+				}
+			} else {
+				int perByte = 8 / bitDepth;
+				int mask = (1 << bitDepth) - 1;
+				for (int x=0; x<w; x++) {
+					int shift = 8 - bitDepth * (x % perByte + 1);
+					pixels[offset + x] = palette[(cur[x / perByte + 1] >> shift) & mask];
+				}
+			}
+			break;
+		}
+	}
+
+}
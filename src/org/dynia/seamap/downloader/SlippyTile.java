@@ -2,18 +2,26 @@ package org.dynia.seamap.downloader;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import javax.imageio.ImageIO;
 
+import org.dynia.seamap.slipp.OctreeQuantizer;
+import org.dynia.seamap.stats.Log;
+import org.dynia.seamap.stats.Stats;
+import org.dynia.seamap.stats.Stats.Stage;
+
 public class SlippyTile {	
 
-	private String rootPath;
+	private TileStore store;
+
+	// state of the stored layers (null: ask the store)
+	private TileGrid grid;
 
 	private int slippyX,slippyY,slippyZoom;
 
@@ -28,8 +36,6 @@ public class SlippyTile {
 		}
 	}
 
-	private BoundingBox boundingBox;
-
 	/**
 	 * 
 	 * @param type Map type (0 for base, 1 for sea marks)
@@ -37,13 +43,19 @@ public class SlippyTile {
 	 * @param y
 	 * @param zoom
 	 */
-	public SlippyTile(String rootPath, int x, int y, int zoom) {
+	public SlippyTile(TileStore store, int x, int y, int zoom) {
 		this.slippyX = x;
 		this.slippyY = y;
 		this.slippyZoom = zoom;
-		this.rootPath = rootPath;
+		this.store = store;
+	}
 
-		this.boundingBox = tile2boundingBox(x, y, zoom);
+	/**
+	 * Tile of a grid, stored layers are answered and updated by the grid.
+	 */
+	SlippyTile(TileGrid grid, int x, int y, int zoom) {
+		this(grid.getStore(), x, y, zoom);
+		this.grid = grid;
 	}
 
 	public int getX() {
@@ -66,76 +78,121 @@ public class SlippyTile {
 	public static String getKey(int zoom, int x, int y) {
 		return zoom+"-"+x+"-"+y;	
 	}
+
+	/**
+	 * Tile key packed into a long (5 bits zoom, 29 bits x, 29 bits y).
+	 */
+	public static long packKey(int zoom, int x, int y) {
+		return ((long) zoom << 58) | ((long) x << 29) | y;
+	}
 	
 	
+	/**
+	 * @return bounds of the tile (computed on every call, see {@link TileGrid} for shared bounds)
+	 */
 	public BoundingBox getBoundingBox() {
-		return boundingBox;
+		return tile2boundingBox(slippyX, slippyY, slippyZoom);
 	}
 
-	// check if the file has been already downloaded
+	// check if the file has been already downloaded (or built from the next zoom level)
 	public boolean isDownloaded() {
-		File f1 = new File(rootPath +  getPathFragmentBasic());
-		File f2 = new File(rootPath +  getPathFragmentSeaMark());
-		return f1.exists() && f2.exists();
+		return (has(TileLayer.BASIC) && has(TileLayer.SEA)) || has(TileLayer.FLAT);
 	}
 
-	private String getPathFragmentBasic() {
-		return "BASIC"+getPathFragment();
+	boolean has(TileLayer layer) {
+		if (grid != null) {
+			return grid.has(layer, slippyZoom, slippyX, slippyY);
+		}
+		return store.contains(layer, slippyZoom, slippyX, slippyY);
 	}
 
-	private String getPathFragmentSeaMark() {
-		return "SEA"+getPathFragment();
+	/**
+	 * @return true if the layer is stored as empty tile (length 0, e.g. sea marks of open water)
+	 */
+	boolean isEmpty(TileLayer layer) throws IOException {
+		if (grid != null) {
+			return grid.isEmpty(layer, slippyZoom, slippyX, slippyY);
+		}
+		return store.length(layer, slippyZoom, slippyX, slippyY) == 0;
 	}
 
-	private String getPathFragmentFlatt() {
-		return "FLAT"+getPathFragment();
+	void write(TileLayer layer, InputStream data) throws IOException {
+		if (grid != null) {
+			grid.write(layer, slippyZoom, slippyX, slippyY, data);
+		} else {
+			store.write(layer, slippyZoom, slippyX, slippyY, data);
+		}
 	}
 
-	private String getPathFragment() {
-		StringBuffer sb = new StringBuffer();
-		sb.append("/");
-		sb.append(slippyZoom);
-		sb.append("/");
-		sb.append(slippyX);
-		sb.append("/");
-		sb.append(slippyY);
-		sb.append(".png");
+	void remove(TileLayer layer) throws IOException {
+		if (grid != null) {
+			grid.remove(layer, slippyZoom, slippyX, slippyY);
+		} else {
+			store.remove(layer, slippyZoom, slippyX, slippyY);
+		}
+	}
 
-		return sb.toString();
+	private ByteBuffer readData(TileLayer layer) throws IOException {
+		ByteBuffer data = store.read(layer, slippyZoom, slippyX, slippyY);
+		if (data == null) {
+			throw new FileNotFoundException(layer + getPathFragment());
+		}
+		return data;
 	}
 
-	private String getURLSeaMark() {
-		return "http://t1.openseamap.org/seamark/" + getPathFragment();
+	private BufferedImage readImage(TileLayer layer) throws IOException {
+		return decode(readData(layer));
 	}
 
-	private String getURLBasic() {
-		return "http://tile.openstreetmap.org/" + getPathFragment();
+	/**
+	 * Decode PNG bytes, identical tiles are decoded once (see {@link DecodedTileCache}).
+	 */
+	private BufferedImage decode(ByteBuffer data) throws IOException {
+		String key = DecodedTileCache.key(data);
+		BufferedImage cached = DecodedTileCache.get(key);
+		if (cached != null) {
+			Stats.count("decode.cacheHits");
+			return cached;
+		}
+
+		long start = Stats.start();
+		int size = data.remaining();
+		BufferedImage image = PngTileDecoder.read(data);
+		if (image == null) {
+			// PNG variant not handled by the tile decoder
+			Stats.count("decode.imageio");
+			byte[] bytes;
+			if (data.hasArray() && data.arrayOffset() == 0 && data.remaining() == data.array().length) {
+				bytes = data.array();
+			} else {
+				bytes = new byte[data.remaining()];
+				data.get(bytes);
+			}
+			image = ImageIO.read(new ByteArrayInputStream(bytes));
+			if (image == null) {
+				throw new IOException("Cannot decode " + getPathFragment());
+			}
+		}
+		Stats.end(Stage.DECODE, start, size, (long) image.getWidth() * image.getHeight());
+		DecodedTileCache.put(key, image);
+		return image;
 	}
 
-	public void download() throws IOException {
+	String getPathFragment() {
+		return getPathFragment(slippyZoom, slippyX, slippyY);
+	}
 
-		if (!isDownloaded()) {
-			System.out.println("Downloading ["+getPathFragmentBasic()+"]");
-			// download basic
-			URL website = new URL(getURLBasic());
-			ReadableByteChannel rbc = Channels.newChannel(website.openStream());
-			File f = new File(rootPath + getPathFragmentBasic());
-			f.getParentFile().mkdirs();
-			FileOutputStream fos = new FileOutputStream(f);
-			fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-			fos.close();
+	static String getPathFragment(int zoom, int x, int y) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("/");
+		sb.append(zoom);
+		sb.append("/");
+		sb.append(x);
+		sb.append("/");
+		sb.append(y);
+		sb.append(".png");
 
-			// download overlay
-			website = new URL(getURLSeaMark());
-			rbc = Channels.newChannel(website.openStream());
-			f = new File(rootPath + getPathFragmentSeaMark());
-			f.getParentFile().mkdirs();
-			fos = new FileOutputStream(f);
-			fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-			fos.close();
-		} else {
-			System.out.println("Skipping download for ["+getPathFragmentBasic()+"] (already downloaded)");
-		}
+		return sb.toString();
 	}
 
 	public String toString() {
@@ -143,40 +200,232 @@ public class SlippyTile {
 		sb.append("[x=").append(slippyX);
 		sb.append(", y=").append(slippyY);
 		sb.append(", zoom=").append(slippyZoom);
-		sb.append("] (").append(boundingBox.north);
-		sb.append(",").append(boundingBox.west);
+		sb.append("] (").append(tile2lat(slippyY, slippyZoom));
+		sb.append(",").append(tile2lon(slippyX, slippyZoom));
 		sb.append(")");
 		return sb.toString();
 	}
 
+	/**
+	 * Compose both layers and store the result as FLAT tile (unless already done). Without sea 
+	 * marks the map tile is stored as it is.
+	 * @throws IOException
+	 */
 	public void flatten() throws IOException {
 
-		File flattenFile = new File(rootPath + getPathFragmentFlatt());
-		if (!flattenFile.exists()) {
-			System.out.println("Flat file: " + this.toString());	
+		if (!has(TileLayer.FLAT)) {
+			Log.debug(() -> "Flat file: " + this.toString());
+
+			if (isEmpty(TileLayer.SEA)) {
+				ByteBuffer data = store.read(TileLayer.BASIC, slippyZoom, slippyX, slippyY);
+				byte[] bytes = new byte[data.remaining()];
+				data.get(bytes);
+				write(TileLayer.FLAT, new ByteArrayInputStream(bytes));
+				Stats.count("sea.emptySkipped");
+				return;
+			}
 
-			File f1 = new File(rootPath + getPathFragmentBasic());
-			File f2 = new File(rootPath + getPathFragmentSeaMark());
+			BufferedImage combined = compose();
 
+			// Save as new image
+			long start = Stats.start();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ImageIO.write(combined, "PNG", bos);
+			write(TileLayer.FLAT, new ByteArrayInputStream(bos.toByteArray()));
+			Stats.end(Stage.WRITE, start, bos.size(), 0);
+		}
+	}
 
-			BufferedImage image = ImageIO.read(f1);
-			BufferedImage overlay = ImageIO.read(f2);
+	/**
+	 * Build FLAT tile from the flattened tiles of the next zoom level, every pixel is the average 
+	 * of 2x2 pixels (box filter).
+	 * 
+	 * @param children tiles of zoom+1 in the order north west, north east, south west, south east; 
+	 * the quarter of a missing tile stays transparent
+	 * @throws IOException
+	 */
+	void downsample(SlippyTile[] children) throws IOException {
+		long start = Stats.start();
+		int[] target = new int[256*256];
+		for (int i=0; i<4; i++) {
+			SlippyTile child = children[i];
+			if (!child.isDownloaded()) {
+				Log.warn(() -> "MISSING: " + child.toString());
+				continue;
+			}
+			int[] source = PngTileDecoder.getPixels(child.getFlattened());
+			int offset = (i / 2) * 128 * 256 + (i % 2) * 128;
+			for (int y=0; y<128; y++) {
+				for (int x=0; x<128; x++) {
+					int p = 2*y*256 + 2*x;
+					target[offset + y*256 + x] = average(source[p], source[p+1], source[p+256], source[p+257]);
+				}
+			}
+		}
+		BufferedImage result = PngTileDecoder.createImage(target, 256, 256);
 
-			// create the new image, canvas size is the max. of both image sizes
-			int w = Math.max(image.getWidth(), overlay.getWidth());
-			int h = Math.max(image.getHeight(), overlay.getHeight());
-			BufferedImage combined = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ImageIO.write(result, "PNG", bos);
+		write(TileLayer.FLAT, new ByteArrayInputStream(bos.toByteArray()));
+		Stats.end(Stage.FLATTEN, start, bos.size(), 256*256);
+		Log.debug(() -> "Downsampled: " + this.toString());
+	}
 
-			// paint both images, preserving the alpha channels
-			Graphics g = combined.getGraphics();
-			g.drawImage(image, 0, 0, null);
-			g.drawImage(overlay, 0, 0, null);
+	/**
+	 * @return mean of the pixels (rounded), colors are weighted by alpha so transparent pixels do 
+	 * not add their color
+	 */
+	private static int average(int p1, int p2, int p3, int p4) {
+		int a1 = p1 >>> 24;
+		int a2 = p2 >>> 24;
+		int a3 = p3 >>> 24;
+		int a4 = p4 >>> 24;
+		int alpha = a1 + a2 + a3 + a4;
+		if (alpha == 0) {
+			return 0;
+		}
+		int result = ((alpha + 2) >> 2) << 24;
+		for (int shift=0; shift<24; shift+=8) {
+			int sum = ((p1 >>> shift) & 0xFF) * a1 + ((p2 >>> shift) & 0xFF) * a2 
+					+ ((p3 >>> shift) & 0xFF) * a3 + ((p4 >>> shift) & 0xFF) * a4;
+			result |= ((sum + alpha / 2) / alpha) << shift;
+		}
+		return result;
+	}
 
-			// Save as new image
+	/**
+	 * Return flattened tile, either from FLAT file (if cached by {@link #flatten()}) or composed in memory. 
+	 * The image may be shared with other tiles of the same content and must not be modified.
+	 * @throws IOException
+	 */
+	public BufferedImage getFlattened() throws IOException {
+		if (has(TileLayer.FLAT)) {
+			Stats.count("flat.hits");
+			return readImage(TileLayer.FLAT);
+		}
+		Stats.count("flat.misses");
+		return compose();
+	}
 
-			flattenFile.getParentFile().mkdirs();
-			ImageIO.write(combined, "PNG", flattenFile);
+	/**
+	 * Add every n-th pixel of the flattened tile to the histogram of the quantizer. Unless the FLAT 
+	 * tile is cached, the sea marks are drawn onto the sampled pixels only instead of composing the tile.
+	 * @throws IOException
+	 */
+	void sample(OctreeQuantizer quantizer, int step) throws IOException {
+		int[] pixels;
+		if (has(TileLayer.FLAT)) {
+			pixels = PngTileDecoder.getPixels(readImage(TileLayer.FLAT));
+		} else {
+			BufferedImage image = readImage(TileLayer.BASIC);
+			pixels = PngTileDecoder.getPixels(image);
+			ByteBuffer sea = readData(TileLayer.SEA);
+			if (sea.hasRemaining()) {
+				BufferedImage overlay = decode(sea);
+				if (overlay.getWidth() != image.getWidth() || overlay.getHeight() != image.getHeight()) {
+					pixels = PngTileDecoder.getPixels(compose());
+				} else {
+					int[] seaPixels = PngTileDecoder.getPixels(overlay);
+					int[] sampled = new int[(pixels.length + step - 1) / step];
+					for (int i=0; i<sampled.length; i++) {
+						sampled[i] = drawOver(pixels[i * step], seaPixels[i * step]);
+					}
+					quantizer.add(sampled, 0, sampled.length, 1);
+					return;
+				}
+			}
 		}
+		quantizer.add(pixels, 0, pixels.length, step);
+	}
+
+	/**
+	 * @return source pixel drawn over target pixel (alpha blending, same result as {@link #compose()} 
+	 * for opaque map tiles)
+	 */
+	private static int drawOver(int target, int source) {
+		int sa = source >>> 24;
+		int ta = target >>> 24;
+		if (sa == 255 || ta == 0) {
+			return source;
+		}
+		if (sa == 0) {
+			return target;
+		}
+		if (ta == 255) {
+			int result = 0xFF000000;
+			for (int shift=0; shift<24; shift+=8) {
+				result |= (mul8(sa, (source >>> shift) & 0xFF) + mul8(255 - sa, (target >>> shift) & 0xFF)) << shift;
+			}
+			return result;
+		}
+		int sw = sa * 255;
+		int tw = ta * (255 - sa);
+		int weight = sw + tw;
+		int result = ((weight + 127) / 255) << 24;
+		for (int shift=0; shift<24; shift+=8) {
+			result |= ((((source >>> shift) & 0xFF) * sw + ((target >>> shift) & 0xFF) * tw + weight / 2) / weight) << shift;
+		}
+		return result;
+	}
+
+	/**
+	 * @return a * b / 255 (rounded)
+	 */
+	private static int mul8(int a, int b) {
+		return (a * b + 127) / 255;
+	}
+
+	/**
+	 * Draw sea marks onto the map tile. Tiles with the same content of both layers are composed 
+	 * once (see {@link DecodedTileCache}), the result must not be modified.
+	 */
+	private BufferedImage compose() throws IOException {
+		long start = Stats.start();
+		ByteBuffer base = readData(TileLayer.BASIC);
+		ByteBuffer sea = readData(TileLayer.SEA);
+		if (!sea.hasRemaining()) {
+			BufferedImage image = decode(base);
+			Stats.count("sea.emptySkipped");
+			Stats.end(Stage.FLATTEN, start, 0, (long) image.getWidth() * image.getHeight());
+			return image;
+		}
+
+		String key = DecodedTileCache.key(base, sea);
+		BufferedImage cached = DecodedTileCache.get(key);
+		if (cached != null) {
+			Stats.count("flatten.cacheHits");
+			Stats.end(Stage.FLATTEN, start, 0, (long) cached.getWidth() * cached.getHeight());
+			return cached;
+		}
+
+		BufferedImage image = decode(base);
+		BufferedImage overlay = decode(sea);
+		if (EmptyOverlays.isTransparent(overlay)) {
+			// the stored tile is kept, downloads of the same content are stored empty
+			EmptyOverlays emptyOverlays = grid != null ? grid.getEmptyOverlays() : null;
+			if (emptyOverlays != null) {
+				emptyOverlays.add(sea);
+			}
+			Stats.count("sea.emptyDetected");
+			DecodedTileCache.put(key, image);
+			Stats.end(Stage.FLATTEN, start, 0, (long) image.getWidth() * image.getHeight());
+			return image;
+		}
+
+		// create the new image, canvas size is the max. of both image sizes
+		int w = Math.max(image.getWidth(), overlay.getWidth());
+		int h = Math.max(image.getHeight(), overlay.getHeight());
+		BufferedImage combined = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+
+		// paint both images, preserving the alpha channels
+		Graphics g = combined.getGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.drawImage(overlay, 0, 0, null);
+		g.dispose();
+
+		DecodedTileCache.put(key, combined);
+		Stats.end(Stage.FLATTEN, start, 0, (long) w * h);
+		return combined;
 	}
 
 	public BoundingBox tile2boundingBox(final int x, final int y, final int zoom) {
@@ -188,18 +437,17 @@ public class SlippyTile {
 		return bb;
 	}
 
-	static private double tile2lon(int x, int z) {
+	static double tile2lon(int x, int z) {
 		return x / Math.pow(2.0, z) * 360.0 - 180;
 	}
 
-	static private double tile2lat(int y, int z) {
+	static double tile2lat(int y, int z) {
 		double n = Math.PI - (2.0 * Math.PI * y) / Math.pow(2.0, z);
 		return Math.toDegrees(Math.atan(Math.sinh(n)));
 	}
 
 	public void draw(Graphics g, int offsetX, int offsetY) throws IOException {
-		File f1 = new File(rootPath + getPathFragmentFlatt());
-		BufferedImage image = ImageIO.read(f1);
+		BufferedImage image = getFlattened();
 		g.drawImage(image, offsetX, offsetY, null);		
 	}
 
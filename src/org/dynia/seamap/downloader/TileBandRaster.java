@@ -0,0 +1,140 @@
+package org.dynia.seamap.downloader;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.dynia.seamap.slipp.PaletteLookup;
+import org.dynia.seamap.slipp.RasterSource;
+import org.dynia.seamap.stats.Log;
+import org.dynia.seamap.stats.Stats;
+import org.dynia.seamap.stats.Stats.Stage;
+
+/**
+ * Raster of a pane that is composed one tile row (band of 256 pixel rows) at a time.
+ *
+ * Only the band currently read is kept in memory, as palette indices (one byte per pixel), so
+ * memory use depends on the pane width only. Every tile is mapped to the palette on its own and
+ * copied into the band. The result is the same as mapping the image {@link Downloader} draws:
+ * opaque tiles are mapped as they are, tiles with transparent pixels are drawn onto an empty
+ * tile first and missing tiles stay transparent black.
+ */
+public class TileBandRaster implements RasterSource {
+
+	private static final int BAND_HEIGHT = 256;
+	private static final int TILE_SIZE = 256;
+
+	private TileGrid grid;
+	private int zoom;
+	private Pane pane;
+
+	// wait for the tile rows to be downloaded (may be null)
+	private TilePipeline pipeline;
+
+	private byte[] band;
+	private int bandIndex = -1;
+
+	// empty tile to draw tiles with transparent pixels onto
+	private int[] canvasPixels;
+	private BufferedImage canvas;
+
+	public TileBandRaster(TileGrid grid, int zoom, Pane pane) {
+		this(grid, zoom, pane, null);
+	}
+
+	/**
+	 * @param pipeline tile rows are read as soon as the pipeline has them available (may be null)
+	 */
+	public TileBandRaster(TileGrid grid, int zoom, Pane pane, TilePipeline pipeline) {
+		this.grid = grid;
+		this.zoom = zoom;
+		this.pane = pane;
+		this.pipeline = pipeline;
+	}
+
+	@Override
+	public int getWidth() {
+		return pane.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return pane.getHeight();
+	}
+
+	@Override
+	public void readRows(int y, int rows, byte[] indices, PaletteLookup palette) throws IOException {
+		int width = getWidth();
+		int offset = 0;
+		while (rows > 0) {
+			int bandRow = y % BAND_HEIGHT;
+			int count = Math.min(rows, BAND_HEIGHT - bandRow);
+			loadBand(y / BAND_HEIGHT, palette);
+			System.arraycopy(band, bandRow * width, indices, offset, count * width);
+			offset += count * width;
+			y += count;
+			rows -= count;
+		}
+	}
+
+	private void loadBand(int index, PaletteLookup palette) throws IOException {
+		if (index == bandIndex) {
+			return;
+		}
+		if (pipeline != null) {
+			pipeline.awaitRow(pane.b1 + index);
+		}
+		long start = Stats.start();
+		int width = getWidth();
+		if (band == null) {
+			band = new byte[width * BAND_HEIGHT];
+		}
+
+		int b = pane.b1 + index;
+		for (int a=pane.a1; a<=pane.a2; a++) {
+			SlippyTile tile = grid.get(zoom, a, b);
+			int x = (a-pane.a1)*TILE_SIZE;
+			if (tile.isDownloaded()) {
+				int[] pixels = getOpaquePixels(tile.getFlattened());
+				palette.indexOf(pixels, 0, TILE_SIZE, band, x, width, TILE_SIZE, BAND_HEIGHT);
+			} else {
+				Log.warn(() -> "MISSING: " + tile.toString());
+				byte transparent = (byte) palette.indexOf(0);
+				for (int row=0; row<BAND_HEIGHT; row++) {
+					Arrays.fill(band, row * width + x, row * width + x + TILE_SIZE, transparent);
+				}
+			}
+		}
+		Stats.end(Stage.MERGE, start, 0, (long) width * BAND_HEIGHT);
+		bandIndex = index;
+	}
+
+	/**
+	 * @return pixels of the tile as they appear when drawn onto a transparent image
+	 */
+	private int[] getOpaquePixels(BufferedImage image) {
+		if (image.getWidth() == TILE_SIZE && image.getHeight() == TILE_SIZE) {
+			int[] pixels = PngTileDecoder.getPixels(image);
+			boolean opaque = true;
+			for (int i=0; i<pixels.length && opaque; i++) {
+				opaque = (pixels[i] >>> 24) == 0xFF;
+			}
+			if (opaque) {
+				return pixels;
+			}
+		}
+
+		if (canvas == null) {
+			canvasPixels = new int[TILE_SIZE * TILE_SIZE];
+			canvas = PngTileDecoder.createImage(canvasPixels, TILE_SIZE, TILE_SIZE);
+		}
+		Arrays.fill(canvasPixels, 0);
+		Graphics g = canvas.getGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		Stats.count("merge.tilesDrawn");
+		return canvasPixels;
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.dynia.seamap.downloader;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tile store, freshness log and known empty overlays of one download folder. Regions using the same folder 
+ * (see cache.dir) share a single instance, also the downloads in progress: a layer requested by two regions 
+ * at the same time is fetched only once.
+ */
+public class TileCache {
+
+	private String root;
+	private TileStore store;
+	private TileFreshness freshness;
+	private EmptyOverlays emptyOverlays;
+
+	// layers currently downloaded by any region using this cache, by layer and path of the tile
+	private Map<String, CompletableFuture<Void>> fetching = new ConcurrentHashMap<>();
+
+	// grids of the regions using this cache, updated when a tile is written
+	private List<TileGrid> grids = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param root download folder
+	 * @param storeType "directory" or "archive"
+	 * @throws IOException
+	 */
+	public TileCache(String root, String storeType) throws IOException {
+		this.root = root;
+		if ("archive".equals(storeType)) {
+			this.store = new ArchiveTileStore(root);
+		} else {
+			this.store = new DirectoryTileStore(root);
+		}
+		this.freshness = new TileFreshness(root, store);
+		this.emptyOverlays = new EmptyOverlays(root);
+	}
+
+	public String getRoot() {
+		return root;
+	}
+
+	public TileStore getStore() {
+		return store;
+	}
+
+	public TileFreshness getFreshness() {
+		return freshness;
+	}
+
+	EmptyOverlays getEmptyOverlays() {
+		return emptyOverlays;
+	}
+
+	Map<String, CompletableFuture<Void>> getFetching() {
+		return fetching;
+	}
+
+	void register(TileGrid grid) {
+		grids.add(grid);
+	}
+
+	void unregister(TileGrid grid) {
+		grids.remove(grid);
+	}
+
+	List<TileGrid> getGrids() {
+		return grids;
+	}
+
+	public void close() throws IOException {
+		freshness.close();
+		store.close();
+	}
+
+}
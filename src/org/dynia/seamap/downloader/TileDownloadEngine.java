@@ -0,0 +1,476 @@
+package org.dynia.seamap.downloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.dynia.seamap.stats.Log;
+import org.dynia.seamap.stats.Stats;
+import org.dynia.seamap.stats.Stats.Stage;
+
+/**
+ * Downloads the BASIC and SEA layers of many tiles concurrently.
+ * 
+ * Every missing layer is fetched by its own task on a bounded worker pool, so both layers 
+ * of a tile are requested at the same time. The number of parallel requests per tile server 
+ * is capped separately (see tile usage policy of openstreetmap.org). Tiles that are already 
+ * in the tile store are skipped before any task is created, layers that another download of the 
+ * same {@link TileCache} is fetching at the moment are not requested again.
+ * 
+ * The requests per server are adapted to its load by a {@link HostRateController}: the limit grows 
+ * slowly while the server answers and is halved on 429, 503 or timeouts. Failed requests are 
+ * repeated with exponential backoff (randomized), a Retry-After of the server is respected.
+ * 
+ * Sea mark tiles that are empty (404 or content known to be fully transparent) are stored with 
+ * length 0, see {@link EmptyOverlays}. Tiles are not decoded here, transparency is detected when 
+ * the tiles are composed.
+ * 
+ * In refresh mode stored tiles are revalidated with conditional requests (If-None-Match, 
+ * If-Modified-Since) based on their {@link TileFreshness}. Only tiles answered with new content 
+ * are rewritten; their flattened tile is removed and they are recorded as changed.
+ * 
+ * Configuration (all optional):
+ * <ul>
+ * <li>download.threads - size of worker pool (default 4)</li>
+ * <li>download.perHost - initial parallel requests per host (default 2, bounded by download.perHost.max)</li>
+ * <li>download.perHost.max - max. parallel requests per host (default 8, bounded by download.threads)</li>
+ * <li>download.retries - attempts after the first failed one (default 5)</li>
+ * <li>download.backoff - delay before the first retry in ms, doubled with every retry (default 1000)</li>
+ * <li>download.backoff.max - max. delay between retries in ms (default 60000)</li>
+ * <li>download.timeout - connect and read timeout in ms (default 30000, see {@link UrlConnectionTransport})</li>
+ * <li>url.basic - base URL of the map tiles (default https://tile.openstreetmap.org/)</li>
+ * <li>url.seamark - base URL of the sea mark tiles (default https://t1.openseamap.org/seamark/)</li>
+ * <li>download.refresh - revalidate tiles already downloaded (default false)</li>
+ * <li>download.transport - class name of the {@link TileTransport} (default {@link UrlConnectionTransport})</li>
+ * </ul>
+ */
+public class TileDownloadEngine {
+
+	public static final String DEFAULT_URL_BASIC = "https://tile.openstreetmap.org/";
+	public static final String DEFAULT_URL_SEAMARK = "https://t1.openseamap.org/seamark/";
+
+	private int threads;
+	private int perHost;
+	private int maxPerHost;
+
+	private int retries;
+	private long backoff;
+	private long backoffMax;
+
+	private TileTransport transport;
+
+	private String urlBasic;
+	private String urlSeaMark;
+
+	private boolean refresh;
+
+	private TileFreshness freshness;
+
+	private EmptyOverlays emptyOverlays;
+
+	// downloads in progress of all regions sharing the cache
+	private Map<String, CompletableFuture<Void>> fetching;
+
+	private Map<String, HostRateController> hosts = new ConcurrentHashMap<>();
+
+	private AtomicInteger finished = new AtomicInteger();
+	private AtomicInteger unchanged = new AtomicInteger();
+	private int total;
+	private int lastReported;
+
+	public TileDownloadEngine(Properties prop, TileCache cache) throws IOException {
+		this.freshness = cache.getFreshness();
+		this.emptyOverlays = cache.getEmptyOverlays();
+		this.fetching = cache.getFetching();
+		this.refresh = Boolean.parseBoolean(prop.getProperty("download.refresh", "false").trim());
+		this.threads = Integer.parseInt(prop.getProperty("download.threads", "4").trim());
+		// more parallel requests than threads are never made
+		this.maxPerHost = Math.min(threads, Integer.parseInt(prop.getProperty("download.perHost.max", "8").trim()));
+		this.perHost = Math.min(maxPerHost, Integer.parseInt(prop.getProperty("download.perHost", "2").trim()));
+		this.retries = Integer.parseInt(prop.getProperty("download.retries", "5").trim());
+		this.backoff = Long.parseLong(prop.getProperty("download.backoff", "1000").trim());
+		this.backoffMax = Long.parseLong(prop.getProperty("download.backoff.max", "60000").trim());
+		this.transport = createTransport(prop);
+		this.urlBasic = prop.getProperty("url.basic", DEFAULT_URL_BASIC).trim();
+		this.urlSeaMark = prop.getProperty("url.seamark", DEFAULT_URL_SEAMARK).trim();
+	}
+
+	private static TileTransport createTransport(Properties prop) throws IOException {
+		String name = prop.getProperty("download.transport", UrlConnectionTransport.class.getName()).trim();
+		try {
+			return (TileTransport) Class.forName(name).getConstructor(Properties.class).newInstance(prop);
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IOException("Cannot create transport: " + name, e);
+		}
+	}
+
+	/**
+	 * Release connections.
+	 */
+	public void close() {
+		transport.close();
+	}
+
+	/**
+	 * Download all missing layers of given tiles (all layers in refresh mode). Blocks until all downloads are finished.
+	 * 
+	 * @param tiles
+	 * @throws IOException first error reported by any of the downloads
+	 */
+	public void download(List<SlippyTile> tiles) throws IOException {
+		download(tiles, null);
+	}
+
+	/**
+	 * Download all missing layers of given tiles, jobs are started in the order of the tiles. 
+	 * Blocks until all downloads are finished.
+	 * 
+	 * @param tiles
+	 * @param done called (by any thread) as soon as both layers of a tile are stored, also for 
+	 * tiles that are not downloaded again (may be null)
+	 * @throws IOException first error reported by any of the downloads
+	 */
+	public void download(List<SlippyTile> tiles, Consumer<SlippyTile> done) throws IOException {
+
+		List<Callable<Void>> jobs = new ArrayList<>();
+		int skipped = 0;
+
+		for (SlippyTile tile : tiles) {
+			boolean basic = !refresh && tile.has(TileLayer.BASIC);
+			boolean seaMark = !refresh && tile.has(TileLayer.SEA);
+
+			if (basic && seaMark) {
+				skipped++;
+				if (done != null) {
+					done.accept(tile);
+				}
+				continue;
+			}
+			AtomicInteger layers = new AtomicInteger((basic ? 0 : 1) + (seaMark ? 0 : 1));
+			if (!basic) {
+				jobs.add(fetchJob(urlBasic + tile.getPathFragment(), tile, TileLayer.BASIC, layers, done));
+			}
+			if (!seaMark) {
+				jobs.add(fetchJob(urlSeaMark + tile.getPathFragment(), tile, TileLayer.SEA, layers, done));
+			}
+		}
+
+		System.out.println("Tiles already downloaded ["+skipped+"/"+tiles.size()+"]");
+		Stats.count("download.cached", skipped);
+		if (jobs.isEmpty()) {
+			return;
+		}
+
+		total = jobs.size();
+		finished.set(0);
+		unchanged.set(0);
+		lastReported = 0;
+		System.out.println("Downloading ["+total+"] files using ["+threads+"] threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (Callable<Void> job : jobs) {
+				futures.add(executor.submit(job));
+			}
+			for (Future<Void> f : futures) {
+				f.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Download interrupted", e);
+		} finally {
+			executor.shutdownNow();
+			// records of this download are kept if the process ends without close()
+			freshness.flush();
+		}
+
+		if (refresh) {
+			System.out.println("Unchanged files ["+unchanged.get()+"/"+total+"]");
+		}
+		for (HostRateController host : hosts.values()) {
+			System.out.println(host);
+		}
+	}
+
+	private Callable<Void> fetchJob(final String url, final SlippyTile tile, final TileLayer layer, 
+			final AtomicInteger layers, final Consumer<SlippyTile> done) {
+		return () -> {
+			fetchOnce(new URL(url), tile, layer);
+			if (reportProgress(finished.incrementAndGet())) {
+				freshness.flush();
+			}
+			if (layers.decrementAndGet() == 0 && done != null) {
+				done.accept(tile);
+			}
+			return null;
+		};
+	}
+
+	/**
+	 * Fetch single layer of a tile unless another download of the same cache (e.g. of an overlapping 
+	 * region) is fetching it already, then wait for that download instead.
+	 */
+	private void fetchOnce(URL url, SlippyTile tile, TileLayer layer) throws IOException {
+		String key = layer.name() + "/" + tile.getPathFragment();
+		CompletableFuture<Void> own = new CompletableFuture<>();
+		CompletableFuture<Void> other = fetching.putIfAbsent(key, own);
+		if (other != null) {
+			Stats.count("download.coalesced");
+			try {
+				other.get();
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Download interrupted", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		Throwable failure = null;
+		try {
+			// stored by a download finished in the meantime
+			if (refresh || !tile.has(layer)) {
+				fetch(url, tile, layer);
+			}
+		} catch (Throwable e) {
+			failure = e;
+			throw e;
+		} finally {
+			// waiting downloads must be released whatever happened (also on errors like OutOfMemoryError)
+			if (failure == null) {
+				own.complete(null);
+			} else {
+				own.completeExceptionally(failure);
+			}
+			fetching.remove(key, own);
+		}
+	}
+
+	/**
+	 * Fetch single layer of a tile, waiting for a free slot of the host first. Failed requests 
+	 * are repeated after a random delay that doubles with every attempt (or the delay requested 
+	 * by the server).
+	 */
+	void fetch(URL url, SlippyTile tile, TileLayer layer) throws IOException {
+		HostRateController host = hosts.computeIfAbsent(url.getHost(), h -> new HostRateController(h, perHost, maxPerHost));
+		for (int attempt = 0; ; attempt++) {
+			long token;
+			try {
+				token = host.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Download interrupted", e);
+			}
+
+			IOException error;
+			long retryAfter = 0;
+			try {
+				request(url, tile, layer);
+				host.success(token);
+				return;
+			} catch (TileServerException e) {
+				if (e.isOverload()) {
+					host.overload(token, e.getRetryAfter());
+					Stats.count("download.overloads");
+				} else {
+					host.failed(token);
+				}
+				if (!e.isRetriable()) {
+					Stats.count("download.errors");
+					throw e;
+				}
+				error = e;
+				retryAfter = e.getRetryAfter();
+			} catch (SocketTimeoutException e) {
+				host.overload(token, 0);
+				Stats.count("download.overloads");
+				error = e;
+			} catch (IOException e) {
+				// connection refused, reset, ...
+				host.failed(token);
+				error = e;
+			}
+
+			if (attempt >= retries) {
+				Stats.count("download.errors");
+				throw error;
+			}
+			long delay = Math.max(retryAfter, backoff(attempt));
+			final IOException reason = error;
+			Log.info(() -> "Retry in ["+delay+" ms]: " + url + " (" + reason.getMessage() + ")");
+			Stats.count("download.retries");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Download interrupted", e);
+			}
+		}
+	}
+
+	/**
+	 * @return random delay between half and full of backoff * 2^attempt (max. backoffMax)
+	 */
+	private long backoff(int attempt) {
+		long max = Math.min(backoffMax, backoff << Math.min(attempt, 20));
+		return ThreadLocalRandom.current().nextLong(max / 2, max + 1);
+	}
+
+	/**
+	 * @return delay in milliseconds of a Retry-After header (seconds or HTTP date), 0 if none
+	 */
+	static long parseRetryAfter(String value) {
+		if (value == null) {
+			return 0;
+		}
+		value = value.trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			// HTTP date
+		}
+		try {
+			long time = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			return Math.max(0, time - System.currentTimeMillis());
+		} catch (DateTimeParseException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Single request for a layer of a tile.
+	 * @throws TileServerException if the server answered with an error
+	 */
+	private void request(URL url, SlippyTile tile, TileLayer layer) throws IOException {
+		long start = Stats.start();
+
+		Map<String, String> headers = new HashMap<>();
+		TileFreshness.Entry entry = freshness.get(layer, tile.getZoom(), tile.getX(), tile.getY());
+		boolean conditional = refresh && entry != null && tile.has(layer);
+		if (conditional && entry.etag != null) {
+			headers.put("If-None-Match", entry.etag);
+		}
+		if (conditional && entry.lastModified != null) {
+			headers.put("If-Modified-Since", entry.lastModified);
+		}
+
+		try (TileTransport.Response response = transport.get(url, headers)) {
+			receive(url, tile, layer, conditional, response, start);
+		}
+	}
+
+	private void receive(URL url, SlippyTile tile, TileLayer layer, boolean conditional, TileTransport.Response response, long start) throws IOException {
+		int status = response.getStatus();
+		if (status == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+			freshness.validated(layer, tile.getZoom(), tile.getX(), tile.getY());
+			unchanged.incrementAndGet();
+			Stats.end(Stage.DOWNLOAD, start);
+			Stats.count("download.notModified");
+			Log.debug(() -> "Not modified: " + url);
+			return;
+		}
+		if (status == HttpURLConnection.HTTP_NOT_FOUND && layer == TileLayer.SEA) {
+			// no sea marks here
+			storeEmpty(tile, layer, response);
+			Stats.end(Stage.DOWNLOAD, start);
+			Stats.count("sea.empty404");
+			return;
+		}
+		if (status != HttpURLConnection.HTTP_OK) {
+			long retryAfter = parseRetryAfter(response.getHeader("Retry-After"));
+			throw new TileServerException("Server returned HTTP response code: " + status + " for URL: " + url, status, retryAfter);
+		}
+
+		CountingInputStream in = new CountingInputStream(response.getBody());
+		if (layer == TileLayer.SEA) {
+			byte[] data = readFully(in);
+			if (emptyOverlays.isKnown(ByteBuffer.wrap(data))) {
+				Stats.count("sea.emptyKnown");
+				storeEmpty(tile, layer, response);
+				Stats.end(Stage.DOWNLOAD, start, in.getCount(), 0);
+				return;
+			}
+			tile.write(layer, new ByteArrayInputStream(data));
+		} else {
+			tile.write(layer, in);
+		}
+		Stats.end(Stage.DOWNLOAD, start, in.getCount(), 0);
+		Stats.count("download.tiles." + layer.name().toLowerCase());
+		Log.debug(() -> "Downloaded: " + url + " [" + in.getCount() + " bytes]");
+		freshness.changed(layer, tile.getZoom(), tile.getX(), tile.getY(), 
+				response.getHeader("ETag"), response.getHeader("Last-Modified"));
+		// flattened tile is outdated now
+		tile.remove(TileLayer.FLAT);
+	}
+
+	/**
+	 * Store empty tile (length 0) unless already stored.
+	 */
+	private void storeEmpty(SlippyTile tile, TileLayer layer, TileTransport.Response response) throws IOException {
+		if (tile.has(layer) && tile.isEmpty(layer) && freshness.get(layer, tile.getZoom(), tile.getX(), tile.getY()) != null) {
+			freshness.validated(layer, tile.getZoom(), tile.getX(), tile.getY());
+			unchanged.incrementAndGet();
+			return;
+		}
+		tile.write(layer, new ByteArrayInputStream(new byte[0]));
+		freshness.changed(layer, tile.getZoom(), tile.getX(), tile.getY(), 
+				response.getHeader("ETag"), response.getHeader("Last-Modified"));
+		tile.remove(TileLayer.FLAT);
+		Log.debug(() -> "Empty: " + tile.toString());
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(8192);
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			bos.write(buffer, 0, n);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * @return true if the progress was reported (every 5%)
+	 */
+	private synchronized boolean reportProgress(int done) {
+		if (done == total || (done - lastReported) * 20 >= total) {
+			lastReported = done;
+			System.out.println("Downloaded ["+done+"/"+total+"] ("+(100 * done / total)+"%)");
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,222 @@
+package org.dynia.seamap.downloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Freshness metadata of downloaded tiles (ETag, Last-Modified, time of last fetch and of last change).
+ * 
+ * Kept for the BASIC and SEA layer in &lt;root&gt;/&lt;LAYER&gt;.meta, one line per update 
+ * (zoom, x, y, fetched, changed, ETag, Last-Modified separated by tabs, last line of a tile wins). 
+ * The file is compacted when it is closed and has grown to more than twice the number of tiles. 
+ * Records are buffered, see {@link #flush()}. While records are written the file &lt;root&gt;/freshness.open 
+ * exists; if it is found when the metadata is loaded, the previous run ended without {@link #close()} 
+ * and records may be missing (see {@link #isComplete()}).
+ */
+public class TileFreshness {
+
+	/**
+	 * Freshness of a single tile layer.
+	 */
+	public static class Entry {
+		String etag;
+		String lastModified;
+		/** last time the tile was fetched or validated */
+		long fetched;
+		/** last time new content was stored */
+		long changed;
+	}
+
+	private static final TileLayer[] LAYERS = { TileLayer.BASIC, TileLayer.SEA };
+
+	private String rootPath;
+
+	private TileStore store;
+
+	private Map<TileLayer, Map<Long, Entry>> entries = new EnumMap<>(TileLayer.class);
+	private Map<TileLayer, BufferedWriter> writers = new EnumMap<>(TileLayer.class);
+	private int[] lines = new int[TileLayer.values().length];
+
+	private boolean complete;
+
+	/**
+	 * @param rootPath
+	 * @param store tiles the metadata belongs to
+	 * @throws IOException
+	 */
+	public TileFreshness(String rootPath, TileStore store) throws IOException {
+		this.rootPath = rootPath;
+		this.store = store;
+		this.complete = !getOpenMarker().exists();
+
+		for (TileLayer layer : LAYERS) {
+			entries.put(layer, new HashMap<>());
+			File f = getFile(layer);
+			if (f.exists()) {
+				load(layer, f);
+			}
+		}
+	}
+
+	private File getFile(TileLayer layer) {
+		return new File(rootPath + layer.name() + ".meta");
+	}
+
+	private File getOpenMarker() {
+		return new File(rootPath + "freshness.open");
+	}
+
+	/**
+	 * @return false if the previous run using this folder ended without closing the metadata 
+	 * (records of changed tiles may be lost, changes must not be derived from it)
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	private void load(TileLayer layer, File f) throws IOException {
+		Map<Long, Entry> map = entries.get(layer);
+		try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length < 7) {
+					// incomplete last line
+					continue;
+				}
+				Entry e = new Entry();
+				e.fetched = Long.parseLong(fields[3]);
+				e.changed = Long.parseLong(fields[4]);
+				e.etag = fields[5].isEmpty() ? null : fields[5];
+				e.lastModified = fields[6].isEmpty() ? null : fields[6];
+				map.put(SlippyTile.packKey(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2])), e);
+				lines[layer.ordinal()]++;
+			}
+		}
+	}
+
+	/**
+	 * @return freshness of the tile or null if unknown (e.g. downloaded by an older version)
+	 */
+	public synchronized Entry get(TileLayer layer, int zoom, int x, int y) {
+		return entries.get(layer).get(SlippyTile.packKey(zoom, x, y));
+	}
+
+	/**
+	 * Record that new content of a tile has been stored.
+	 */
+	public void changed(TileLayer layer, int zoom, int x, int y, String etag, String lastModified) throws IOException {
+		long now = System.currentTimeMillis();
+		Entry e = new Entry();
+		e.etag = etag;
+		e.lastModified = lastModified;
+		e.fetched = now;
+		e.changed = now;
+		update(layer, zoom, x, y, e);
+	}
+
+	/**
+	 * Record that the stored content of a tile is still up to date (HTTP 304).
+	 */
+	public void validated(TileLayer layer, int zoom, int x, int y) throws IOException {
+		Entry old = get(layer, zoom, x, y);
+		Entry e = new Entry();
+		e.etag = old.etag;
+		e.lastModified = old.lastModified;
+		e.changed = old.changed;
+		e.fetched = System.currentTimeMillis();
+		update(layer, zoom, x, y, e);
+	}
+
+	/**
+	 * Check if BASIC or SEA layer of the tile got new content after given time. Tiles without 
+	 * metadata (e.g. downloaded by an older version or record lost in a crash) and tiles written 
+	 * after their recorded change count as changed.
+	 */
+	public boolean changedSince(int zoom, int x, int y, long time) {
+		for (TileLayer layer : LAYERS) {
+			Entry e = get(layer, zoom, x, y);
+			if (e == null || e.changed > time || store.lastModified(layer, zoom, x, y) > e.changed) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write the records buffered so far to the files.
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		for (BufferedWriter writer : writers.values()) {
+			writer.flush();
+		}
+	}
+
+	private synchronized void update(TileLayer layer, int zoom, int x, int y, Entry e) throws IOException {
+		entries.get(layer).put(SlippyTile.packKey(zoom, x, y), e);
+
+		BufferedWriter writer = writers.get(layer);
+		if (writer == null) {
+			getFile(layer).getParentFile().mkdirs();
+			getOpenMarker().createNewFile();
+			writer = new BufferedWriter(new FileWriter(getFile(layer), true));
+			writers.put(layer, writer);
+		}
+		writer.write(format(SlippyTile.packKey(zoom, x, y), e));
+		lines[layer.ordinal()]++;
+	}
+
+	private static String format(long key, Entry e) {
+		return (key >>> 58) + "\t" + ((key >>> 29) & 0x1FFFFFFF) + "\t" + (key & 0x1FFFFFFF) + "\t" + e.fetched + "\t" + e.changed + "\t" 
+				+ (e.etag == null ? "" : e.etag) + "\t" + (e.lastModified == null ? "" : e.lastModified) + "\n";
+	}
+
+	public synchronized void close() throws IOException {
+		for (TileLayer layer : LAYERS) {
+			BufferedWriter writer = writers.remove(layer);
+			if (writer != null) {
+				writer.close();
+			}
+			if (lines[layer.ordinal()] > 2 * entries.get(layer).size()) {
+				compact(layer);
+			}
+		}
+		Files.deleteIfExists(getOpenMarker().toPath());
+	}
+
+	/**
+	 * Rewrite the file with the last line of each tile, the old file is replaced when the new one 
+	 * is complete (the metadata is never lost if the process is interrupted).
+	 */
+	private void compact(TileLayer layer) throws IOException {
+		File f = getFile(layer);
+		File tmp = new File(f.getPath() + ".tmp");
+		try {
+			try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmp))) {
+				for (Map.Entry<Long, Entry> me : entries.get(layer).entrySet()) {
+					bw.write(format(me.getKey(), me.getValue()));
+				}
+			}
+			try {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+		lines[layer.ordinal()] = entries.get(layer).size();
+	}
+
+}
@@ -0,0 +1,388 @@
+package org.dynia.seamap.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Tiles of a region on all its zoom levels (from zoom down to minZoom), addressed by
+ * (x - x1, y - y1) of each level.
+ *
+ * No tile objects or string keys are kept: {@link SlippyTile}s are created on demand (they only
+ * reference the grid), per-tile state is kept in bit sets per level and the bounds of the tiles
+ * are taken from latitude / longitude tables shared by all tiles of a row / column, computed
+ * when first used.
+ *
+ * Which layers of a tile are stored and which are empty (length 0) is read once from the
+ * {@link TileStore} when the grid is created. Tiles written or removed through a grid update the
+ * state of all open grids of the same {@link TileCache} (e.g. overlapping regions of a batch).
+ */
+public class TileGrid {
+
+	private final TileStore store;
+	// shared with other grids (may be null)
+	private final TileCache cache;
+	private final int zoom;
+	private final int minZoom;
+	private final Level[] levels;
+
+	/**
+	 * Tiles of a single zoom level.
+	 */
+	private static class Level {
+		final int zoom;
+		final int x1, y1, x2, y2;
+		final int width, height;
+
+		/** tiles that are new or changed in this run */
+		final BitSet changed = new BitSet();
+
+		/** tiles stored in each layer (guarded by the level) */
+		final BitSet[] stored = new BitSet[TileLayer.values().length];
+		/** tiles stored with length 0 in each layer (guarded by the level) */
+		final BitSet[] empty = new BitSet[TileLayer.values().length];
+
+		/** latitude of the north edge of each row (and the south edge of the last row) */
+		double[] lat;
+		/** longitude of the west edge of each column (and the east edge of the last column) */
+		double[] lon;
+
+		Level(int zoom, int x1, int y1, int x2, int y2) {
+			this.zoom = zoom;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.x2 = x2;
+			this.y2 = y2;
+			this.width = 1 + x2 - x1;
+			this.height = 1 + y2 - y1;
+			for (int i=0; i<stored.length; i++) {
+				stored[i] = new BitSet();
+				empty[i] = new BitSet();
+			}
+		}
+
+		synchronized void update(TileLayer layer, int x, int y, long length) {
+			int i = index(x, y);
+			stored[layer.ordinal()].set(i, length >= 0);
+			empty[layer.ordinal()].set(i, length == 0);
+		}
+
+		int index(int x, int y) {
+			return (y - y1) * width + (x - x1);
+		}
+
+		boolean contains(int x, int y) {
+			return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+		}
+
+		synchronized double[] getLat() {
+			if (lat == null) {
+				lat = new double[height + 1];
+				for (int i=0; i<=height; i++) {
+					lat[i] = SlippyTile.tile2lat(y1 + i, zoom);
+				}
+			}
+			return lat;
+		}
+
+		synchronized double[] getLon() {
+			if (lon == null) {
+				lon = new double[width + 1];
+				for (int i=0; i<=width; i++) {
+					lon[i] = SlippyTile.tile2lon(x1 + i, zoom);
+				}
+			}
+			return lon;
+		}
+	}
+
+	/**
+	 * Grid of a region using a shared cache, see {@link #close()}.
+	 * @param cache cache of the tiles
+	 * @see #TileGrid(TileStore, int, int, int, int, int, int)
+	 */
+	public TileGrid(TileCache cache, int zoom, int x1, int y1, int x2, int y2, int minZoom) throws IOException {
+		this(cache.getStore(), cache, zoom, x1, y1, x2, y2, minZoom);
+	}
+
+	/**
+	 * @param store tile store of the tiles
+	 * @param zoom highest zoom level
+	 * @param x1 first tile column of the highest level
+	 * @param y1 first tile row of the highest level
+	 * @param x2 last tile column (inclusive)
+	 * @param y2 last tile row (inclusive)
+	 * @param minZoom lowest zoom level, tiles of lower levels cover the tiles of the highest level
+	 */
+	public TileGrid(TileStore store, int zoom, int x1, int y1, int x2, int y2, int minZoom) throws IOException {
+		this(store, null, zoom, x1, y1, x2, y2, minZoom);
+	}
+
+	private TileGrid(TileStore store, TileCache cache, int zoom, int x1, int y1, int x2, int y2, int minZoom) throws IOException {
+		this.store = store;
+		this.cache = cache;
+		this.zoom = zoom;
+		this.minZoom = minZoom;
+		this.levels = new Level[zoom - minZoom + 1];
+		for (int z=zoom; z>=minZoom; z--) {
+			int shift = zoom - z;
+			levels[zoom - z] = new Level(z, x1 >> shift, y1 >> shift, x2 >> shift, y2 >> shift);
+		}
+
+		// registered first, so tiles written by other grids while scanning are not lost
+		if (cache != null) {
+			cache.register(this);
+		}
+		for (Level level : levels) {
+			synchronized (level) {
+				for (TileLayer layer : TileLayer.values()) {
+					store.scan(layer, level.zoom, level.x1, level.y1, level.x2, level.y2, 
+							(x, y, length) -> level.update(layer, x, y, length));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop receiving updates of other grids of the cache.
+	 */
+	public void close() {
+		if (cache != null) {
+			cache.unregister(this);
+		}
+	}
+
+	private Level level(int z) {
+		if (z > zoom || z < minZoom) {
+			throw new IllegalArgumentException("Zoom level not in grid: " + z);
+		}
+		return levels[zoom - z];
+	}
+
+	public int getZoom() {
+		return zoom;
+	}
+
+	public int getMinZoom() {
+		return minZoom;
+	}
+
+	public int getFirstX(int z) {
+		return level(z).x1;
+	}
+
+	public int getLastX(int z) {
+		return level(z).x2;
+	}
+
+	public int getFirstY(int z) {
+		return level(z).y1;
+	}
+
+	public int getLastY(int z) {
+		return level(z).y2;
+	}
+
+	/**
+	 * @return number of tiles of all levels
+	 */
+	public int size() {
+		int size = 0;
+		for (Level level : levels) {
+			size += level.width * level.height;
+		}
+		return size;
+	}
+
+	/**
+	 * @return number of tiles of one level
+	 */
+	public int size(int z) {
+		Level level = level(z);
+		return level.width * level.height;
+	}
+
+	public boolean contains(int z, int x, int y) {
+		return z <= zoom && z >= minZoom && level(z).contains(x, y);
+	}
+
+	/**
+	 * @return the tile or null if it is not part of the grid
+	 */
+	public SlippyTile get(int z, int x, int y) {
+		if (!contains(z, x, y)) {
+			return null;
+		}
+		return new SlippyTile(this, x, y, z);
+	}
+
+	/**
+	 * @return tiles of one level in row order
+	 */
+	public Stream<SlippyTile> tiles(int z) {
+		Level level = level(z);
+		return IntStream.range(0, level.width * level.height)
+				.mapToObj(i -> new SlippyTile(this, level.x1 + i % level.width, level.y1 + i / level.width, z));
+	}
+
+	/**
+	 * @return tiles of one row of a level
+	 */
+	public Stream<SlippyTile> row(int z, int y) {
+		Level level = level(z);
+		return IntStream.rangeClosed(level.x1, level.x2).mapToObj(x -> new SlippyTile(this, x, y, z));
+	}
+
+	/**
+	 * @return tiles of all levels, highest zoom first (a single index range, so parallel streams 
+	 * are split across levels and within a level)
+	 */
+	public Stream<SlippyTile> tiles() {
+		return IntStream.range(0, size()).mapToObj(this::tile);
+	}
+
+	/**
+	 * @return tile at given index of all levels, highest zoom first
+	 */
+	private SlippyTile tile(int index) {
+		for (Level level : levels) {
+			int n = level.width * level.height;
+			if (index < n) {
+				return new SlippyTile(this, level.x1 + index % level.width, level.y1 + index / level.width, level.zoom);
+			}
+			index -= n;
+		}
+		throw new IndexOutOfBoundsException("Tile index: " + index);
+	}
+
+	/**
+	 * @return true if the tile is on a lower level and all four tiles of the next level are part
+	 * of the grid (the tile can be built from them)
+	 */
+	public boolean isCovered(int z, int x, int y) {
+		if (z >= zoom) {
+			return false;
+		}
+		Level next = level(z + 1);
+		return 2*x >= next.x1 && 2*x+1 <= next.x2 && 2*y >= next.y1 && 2*y+1 <= next.y2;
+	}
+
+	public boolean isCovered(SlippyTile tile) {
+		return isCovered(tile.getZoom(), tile.getX(), tile.getY());
+	}
+
+	TileStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return empty sea mark tiles of the cache (null if the grid has no cache)
+	 */
+	EmptyOverlays getEmptyOverlays() {
+		return cache != null ? cache.getEmptyOverlays() : null;
+	}
+
+	/**
+	 * @return true if the layer of the tile is stored
+	 */
+	public boolean has(TileLayer layer, int z, int x, int y) {
+		Level level = level(z);
+		synchronized (level) {
+			return level.stored[layer.ordinal()].get(level.index(x, y));
+		}
+	}
+
+	/**
+	 * @return true if the layer of the tile is stored with length 0
+	 */
+	public boolean isEmpty(TileLayer layer, int z, int x, int y) {
+		Level level = level(z);
+		synchronized (level) {
+			return level.empty[layer.ordinal()].get(level.index(x, y));
+		}
+	}
+
+	/**
+	 * Store layer of a tile and update all grids of the cache.
+	 */
+	void write(TileLayer layer, int z, int x, int y, InputStream data) throws IOException {
+		store.write(layer, z, x, y, data);
+		long length = store.length(layer, z, x, y);
+		for (TileGrid grid : grids()) {
+			grid.update(layer, z, x, y, length);
+		}
+	}
+
+	/**
+	 * Remove layer of a tile and update all grids of the cache.
+	 */
+	void remove(TileLayer layer, int z, int x, int y) throws IOException {
+		store.remove(layer, z, x, y);
+		for (TileGrid grid : grids()) {
+			grid.update(layer, z, x, y, -1);
+		}
+	}
+
+	private Iterable<TileGrid> grids() {
+		return cache == null ? Collections.singletonList(this) : cache.getGrids();
+	}
+
+	private void update(TileLayer layer, int z, int x, int y, long length) {
+		if (contains(z, x, y)) {
+			level(z).update(layer, x, y, length);
+		}
+	}
+
+	/**
+	 * Mark tile as new or changed in this run.
+	 */
+	public void setChanged(int z, int x, int y) {
+		Level level = level(z);
+		synchronized (level.changed) {
+			level.changed.set(level.index(x, y));
+		}
+	}
+
+	public boolean isChanged(int z, int x, int y) {
+		Level level = level(z);
+		synchronized (level.changed) {
+			return level.changed.get(level.index(x, y));
+		}
+	}
+
+	/**
+	 * @return latitude of the north edge of tile row y
+	 */
+	public double getNorth(int z, int y) {
+		Level level = level(z);
+		return level.getLat()[y - level.y1];
+	}
+
+	/**
+	 * @return latitude of the south edge of tile row y
+	 */
+	public double getSouth(int z, int y) {
+		Level level = level(z);
+		return level.getLat()[y - level.y1 + 1];
+	}
+
+	/**
+	 * @return longitude of the west edge of tile column x
+	 */
+	public double getWest(int z, int x) {
+		Level level = level(z);
+		return level.getLon()[x - level.x1];
+	}
+
+	/**
+	 * @return longitude of the east edge of tile column x
+	 */
+	public double getEast(int z, int x) {
+		Level level = level(z);
+		return level.getLon()[x - level.x1 + 1];
+	}
+
+}
@@ -0,0 +1,17 @@
+package org.dynia.seamap.downloader;
+
+/**
+ * Layers kept for every tile.
+ */
+public enum TileLayer {
+
+	/** map tile (openstreetmap.org) */
+	BASIC,
+
+	/** sea mark overlay (openseamap.org) */
+	SEA,
+
+	/** BASIC and SEA composed into one tile */
+	FLAT
+
+}
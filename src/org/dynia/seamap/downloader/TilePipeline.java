@@ -0,0 +1,195 @@
+package org.dynia.seamap.downloader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.dynia.seamap.stats.Log;
+import org.dynia.seamap.stats.Stats;
+
+/**
+ * Connects download, flattening and KAP encoding of a region so that they overlap.
+ *
+ * Tiles are downloaded in row order. As soon as all tiles of a tile row are stored, the row is
+ * put into a bounded queue (download threads wait while the queue is full) and flattened by a
+ * single thread. Rows that are flattened are released to the encoders: {@link TileBandRaster}
+ * waits in {@link #awaitRow(int)} until the band it composes is available, so a pane is encoded
+ * while the rows below it are still downloading.
+ *
+ * The queue only bounds the rows waiting to be flattened (flat.cache). Encoding does not slow down 
+ * the downloads: without flat cache every row is released as soon as it is downloaded, the rows 
+ * the encoders have not reached yet wait in the tile store (not in memory), their number is not bounded.
+ *
+ * The first error of any stage is passed to all waiting stages.
+ */
+public class TilePipeline {
+
+	private final TileGrid grid;
+	private final int zoom;
+	private final int y1;
+	private final boolean flatCache;
+
+	// tiles of each row still to be downloaded
+	private final AtomicIntegerArray pending;
+
+	private final BlockingQueue<Integer> downloaded;
+
+	// rows ready to be encoded
+	private final BitSet ready = new BitSet();
+	private IOException failure;
+
+	private Thread flattener;
+
+	/**
+	 * @param grid tiles of the region (highest zoom level only)
+	 * @param flatCache store flattened tiles (otherwise tiles are composed by the encoder)
+	 * @param queueSize max. number of downloaded rows waiting to be flattened (see class comment)
+	 */
+	public TilePipeline(TileGrid grid, boolean flatCache, int queueSize) {
+		this.grid = grid;
+		this.zoom = grid.getZoom();
+		this.flatCache = flatCache;
+
+		this.y1 = grid.getFirstY(zoom);
+
+		this.pending = new AtomicIntegerArray(1 + grid.getLastY(zoom) - y1);
+		for (int i=0; i<pending.length(); i++) {
+			pending.set(i, 1 + grid.getLastX(zoom) - grid.getFirstX(zoom));
+		}
+		this.downloaded = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+	}
+
+	/**
+	 * Start flattening rows as they are downloaded.
+	 */
+	public void start() {
+		flattener = new Thread(this::flattenRows, "flatten");
+		flattener.setDaemon(true);
+		flattener.start();
+	}
+
+	/**
+	 * Stop flattening (after an error of another stage).
+	 */
+	public void close() {
+		if (flattener != null) {
+			flattener.interrupt();
+		}
+	}
+
+	/**
+	 * Record that both layers of a tile are stored (called by the download threads).
+	 */
+	public void downloaded(SlippyTile tile) {
+		int row = tile.getY() - y1;
+		if (pending.decrementAndGet(row) == 0) {
+			try {
+				long start = System.nanoTime();
+				downloaded.put(row);
+				Stats.count("pipeline.downloadWaitMs", (System.nanoTime() - start) / 1000000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				// the row never reaches the encoders
+				fail(new IOException("Interrupted", e));
+			}
+		}
+	}
+
+	/**
+	 * Pass error of a stage to all waiting stages.
+	 */
+	public synchronized void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Wait until tile row y is downloaded (and flattened).
+	 * @throws IOException error of another stage
+	 */
+	public synchronized void awaitRow(int y) throws IOException {
+		int row = y - y1;
+		if (ready.get(row)) {
+			return;
+		}
+		long start = System.nanoTime();
+		Stats.count("pipeline.encoderWaits");
+		try {
+			while (!ready.get(row)) {
+				if (failure != null) {
+					throw new IOException("Tile row ["+y+"] not available", failure);
+				}
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		} finally {
+			Stats.count("pipeline.encoderWaitMs", (System.nanoTime() - start) / 1000000);
+		}
+	}
+
+	/**
+	 * Wait until all tile rows [first, last] are available.
+	 */
+	public void awaitRows(int first, int last) throws IOException {
+		for (int y=first; y<=last; y++) {
+			awaitRow(y);
+		}
+	}
+
+	private synchronized void release(int row) {
+		ready.set(row);
+		notifyAll();
+	}
+
+	private void flattenRows() {
+		boolean failed = false;
+		for (int i=0; i<pending.length(); i++) {
+			int row;
+			try {
+				row = downloaded.take();
+			} catch (InterruptedException e) {
+				fail(new IOException("Interrupted", e));
+				return;
+			}
+			if (failed) {
+				// keep taking rows, download threads must not wait for the queue
+				continue;
+			}
+			try {
+				if (flatCache) {
+					flatten(y1 + row);
+				}
+				release(row);
+			} catch (IOException e) {
+				fail(e);
+				failed = true;
+			}
+		}
+	}
+
+	private void flatten(int y) throws IOException {
+		try {
+			grid.row(zoom, y).parallel().forEach(tile -> {
+				if (!tile.isDownloaded()) {
+					Log.warn(() -> "MISSING: " + tile.toString());
+					return;
+				}
+				try {
+					tile.flatten();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.dynia.seamap.downloader;
+
+import java.io.IOException;
+
+/**
+ * Tile server answered with an error status.
+ */
+class TileServerException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private int status;
+	private long retryAfter;
+
+	/**
+	 * @param retryAfter pause requested by the server in milliseconds (0 if none)
+	 */
+	TileServerException(String message, int status, long retryAfter) {
+		super(message);
+		this.status = status;
+		this.retryAfter = retryAfter;
+	}
+
+	int getStatus() {
+		return status;
+	}
+
+	long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * @return true if the server is overloaded (too many requests, unavailable, gateway timeout)
+	 */
+	boolean isOverload() {
+		return status == 429 || status == 503 || status == 504;
+	}
+
+	/**
+	 * @return true if the same request may succeed later
+	 */
+	boolean isRetriable() {
+		return isOverload() || status == 408 || status == 500 || status == 502;
+	}
+
+}
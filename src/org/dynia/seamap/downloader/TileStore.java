@@ -0,0 +1,63 @@
+package org.dynia.seamap.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage of tile images (PNG bytes) addressed by layer, zoom and tile number.
+ * 
+ * Implementations are safe for concurrent use.
+ */
+public interface TileStore {
+
+	/**
+	 * Callback for stored tiles.
+	 */
+	interface Visitor {
+		void visit(int x, int y, long length) throws IOException;
+	}
+
+	boolean contains(TileLayer layer, int zoom, int x, int y);
+
+	/**
+	 * @return size of the stored tile in bytes (without reading it), -1 if the tile is not stored
+	 * @throws IOException
+	 */
+	long length(TileLayer layer, int zoom, int x, int y) throws IOException;
+
+	/**
+	 * @return time the tile was last written (ms), 0 if not stored or not known by the store
+	 */
+	long lastModified(TileLayer layer, int zoom, int x, int y);
+
+	/**
+	 * Visit all stored tiles of a layer in the range [x1, x2] x [y1, y2] of a zoom level, 
+	 * without reading them.
+	 * @throws IOException
+	 */
+	void scan(TileLayer layer, int zoom, int x1, int y1, int x2, int y2, Visitor visitor) throws IOException;
+
+	/**
+	 * @return PNG bytes of the tile or null if the tile is not stored
+	 * @throws IOException
+	 */
+	ByteBuffer read(TileLayer layer, int zoom, int x, int y) throws IOException;
+
+	/**
+	 * Store tile, replacing previous version.
+	 * 
+	 * @param data PNG bytes, the stream is read to the end but not closed
+	 * @throws IOException
+	 */
+	void write(TileLayer layer, int zoom, int x, int y, InputStream data) throws IOException;
+
+	/**
+	 * Remove tile if stored.
+	 * @throws IOException
+	 */
+	void remove(TileLayer layer, int zoom, int x, int y) throws IOException;
+
+	void close() throws IOException;
+
+}
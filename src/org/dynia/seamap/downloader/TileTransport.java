@@ -0,0 +1,46 @@
+package org.dynia.seamap.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Executes the HTTP requests of the {@link TileDownloadEngine}.
+ * 
+ * Implementations are safe for concurrent use and need a public constructor taking the 
+ * configuration (java.util.Properties), see download.transport.
+ */
+public interface TileTransport {
+
+	/**
+	 * Response of a tile server. Closing it releases the connection for the next request.
+	 */
+	interface Response extends Closeable {
+
+		int getStatus();
+
+		/**
+		 * @return header value or null
+		 */
+		String getHeader(String name);
+
+		/**
+		 * @return body of a 200 response
+		 */
+		InputStream getBody() throws IOException;
+
+	}
+
+	/**
+	 * Send GET request and wait for the status line and headers.
+	 * 
+	 * @param headers request headers
+	 * @throws IOException connection or timeout error
+	 */
+	Response get(URL url, Map<String, String> headers) throws IOException;
+
+	void close();
+
+}
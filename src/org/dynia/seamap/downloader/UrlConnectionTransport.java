@@ -0,0 +1,116 @@
+package org.dynia.seamap.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * {@link TileTransport} based on HttpURLConnection.
+ * 
+ * Connections are kept alive and reused by the JDK as long as every response body is read to the 
+ * end, so the body of error responses is drained as well. The JDK keeps http.maxConnections idle 
+ * connections per host (default 5), it is raised to the number of download threads unless set.
+ * 
+ * Configuration (all optional):
+ * <ul>
+ * <li>download.connectTimeout - in ms (default download.timeout or 30000)</li>
+ * <li>download.readTimeout - in ms (default download.timeout or 30000)</li>
+ * <li>download.userAgent - User-Agent header (required by the tile usage policy of openstreetmap.org)</li>
+ * </ul>
+ */
+public class UrlConnectionTransport implements TileTransport {
+
+	public static final String DEFAULT_USER_AGENT = "OpenSee4OpenCPN (+https://github.com/mdynia/OpenSee4OpenCPN)";
+
+	/** bytes of an error response read at most to keep the connection */
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	private int connectTimeout;
+	private int readTimeout;
+	private String userAgent;
+
+	public UrlConnectionTransport(Properties prop) {
+		String timeout = prop.getProperty("download.timeout", "30000").trim();
+		this.connectTimeout = Integer.parseInt(prop.getProperty("download.connectTimeout", timeout).trim());
+		this.readTimeout = Integer.parseInt(prop.getProperty("download.readTimeout", timeout).trim());
+		this.userAgent = prop.getProperty("download.userAgent", DEFAULT_USER_AGENT).trim();
+
+		if (System.getProperty("http.maxConnections") == null) {
+			String threads = prop.getProperty("download.threads", "4").trim();
+			System.setProperty("http.maxConnections", "" + Math.max(5, Integer.parseInt(threads)));
+		}
+	}
+
+	@Override
+	public Response get(URL url, Map<String, String> headers) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setRequestProperty("User-Agent", userAgent);
+		for (Map.Entry<String, String> e : headers.entrySet()) {
+			connection.setRequestProperty(e.getKey(), e.getValue());
+		}
+		int status = connection.getResponseCode();
+		return new UrlConnectionResponse(connection, status);
+	}
+
+	@Override
+	public void close() {
+	}
+
+	private static class UrlConnectionResponse implements Response {
+
+		private HttpURLConnection connection;
+		private int status;
+		private InputStream body;
+
+		UrlConnectionResponse(HttpURLConnection connection, int status) {
+			this.connection = connection;
+			this.status = status;
+		}
+
+		@Override
+		public int getStatus() {
+			return status;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return connection.getHeaderField(name);
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			if (body == null) {
+				body = connection.getInputStream();
+			}
+			return body;
+		}
+
+		@Override
+		public void close() throws IOException {
+			InputStream in = body;
+			if (in == null) {
+				in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			}
+			if (in == null) {
+				return;
+			}
+			try {
+				// read rest of the body, otherwise the connection is not reused
+				byte[] buffer = new byte[8192];
+				int total = 0;
+				int n;
+				while (total < MAX_DRAIN && (n = in.read(buffer)) != -1) {
+					total += n;
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+}
@@ -1,26 +1,77 @@
 package org.dynia.seamap.slipp;
-import java.awt.Color;
-import java.awt.image.BufferedImage;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import org.dynia.seamap.stats.Stats;
+import org.dynia.seamap.stats.Stats.Stage;
+
+/**
+ * Compresses image rows (BSB/KAP run length encoding) and writes them, followed by the line index.
+ * 
+ * Rows are read as palette indices (one byte per pixel, see {@link RasterSource}), the encoder 
+ * only scans them for runs of the same index.
+ * 
+ * Every row is encoded independently, so rows are read in blocks and the rows of a block are 
+ * compressed in parallel into separate buffers. The offsets of the rows are computed afterwards 
+ * (prefix sum over the row lengths) and the buffers are written in order with a single gathering 
+ * write. The output is the same as when encoding one row after another.
+ * 
+ * For an incremental rebuild the compressed rows of unchanged blocks are copied from the previous 
+ * KAP file (see {@link #setPrevious(KapReader, BitSet)}).
+ */
 public class ImageCompress {
 
-	private BufferedImage image;
-	private List<Color> palette; 
+	/** rows read from the source at once (one band of tiles) */
+	private static final int BLOCK_ROWS = 256;
+
+	/** rows compressed by a single task */
+	private static final int TASK_ROWS = 8;
+
+	private RasterSource image;
+	private PaletteLookup palette; 
 	
 	private FileOutputStream output;
 	private Long outputOffset;
 	private List<Long> lineOffsets;
 
-	public ImageCompress(BufferedImage image, List<Color> palette, FileOutputStream fos) {
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	private KapReader previous;
+	private BitSet dirtyBlocks;
+
+	public ImageCompress(RasterSource image, PaletteLookup palette, FileOutputStream fos) {
 		this.image = image;
 		this.palette = palette;	
 		this.output = fos;		
 	}
 
+	/**
+	 * Use given pool for row compression (default is the common pool).
+	 * @param pool
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Copy rows of unchanged blocks from previous version of the KAP file instead of compressing them.
+	 * The previous file must have the same raster size and palette.
+	 * 
+	 * @param previous previous KAP file
+	 * @param dirtyBlocks blocks of 256 rows to be compressed again
+	 */
+	public void setPrevious(KapReader previous, BitSet dirtyBlocks) {
+		this.previous = previous;
+		this.dirtyBlocks = dirtyBlocks;
+	}
+
 	/**
 	 * Compress image and write to output stream.
 	 * @param offset initial position in file
@@ -34,124 +85,238 @@ public class ImageCompress {
 		System.out.println("\tNumber of lines to write ["+image.getHeight()+"]");
 		
 		//color depth
-		write(7);		
+		write(new byte[] { 7 });
 		
 		System.out.println("\tPosition ["+outputOffset+", 0x"+Long.toHexString(outputOffset)+"] (first line)");
 
 		// required
 		lineOffsets.add(0L);
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		byte[] indices = new byte[width * Math.min(BLOCK_ROWS, height)];
 		
 		// compress and output all rows
-		for (int y=0; y<image.getHeight(); y++) {
-			lineOffsets.add(outputOffset);
-			compressRow(y);
+		int copied = 0;
+		for (int y=0; y<height; y+=BLOCK_ROWS) {
+			int rows = Math.min(BLOCK_ROWS, height - y);
+
+			if (previous != null && !dirtyBlocks.get(y / BLOCK_ROWS)) {
+				copyRows(y, rows);
+				copied += rows;
+				continue;
+			}
+
+			image.readRows(y, rows, indices, palette);
+
+			CompressTask task = new CompressTask(indices, y, 0, rows);
+			pool.invoke(task);
+
+			List<RowBuffer> buffers = new ArrayList<>();
+			task.collect(buffers);
+			writeRows(buffers, rows);
+		}
+		if (previous != null) {
+			System.out.println("\tRows copied from previous version ["+copied+"/"+height+"]");
+			Stats.count("encode.rowsCopied", copied);
 		}
 
 		System.out.println("\tPosition ["+outputOffset+", 0x"+Long.toHexString(outputOffset)+"] (line idex)");
 		// compress and output line offsets
+		ByteBuffer index = ByteBuffer.allocate(4 * lineOffsets.size());
 		for (Long l: lineOffsets) {
-			
-			byte a = (byte)((l>>24) & 0xFF);
-			byte b = (byte)((l>>16) & 0xFF);
-			byte c = (byte)((l>>8) & 0xFF);
-			byte d = (byte)((l) & 0xFF);
-
-			write(a);
-			write(b);
-			write(c);
-			write(d);
+			index.putInt((int) (long) l);
 		}
+		write(index.array());
 		System.out.println("\tPosition ["+outputOffset+", 0x"+Long.toHexString(outputOffset)+"] (end)");
 		
 	}
 
-	private void compressRow(int row) throws IOException {		
+	/**
+	 * Write rows compressed into given buffers.
+	 */
+	private void writeRows(List<RowBuffer> buffers, int rows) throws IOException {
+		ByteBuffer[] data = new ByteBuffer[buffers.size()];
+		int[] rowLengths = new int[rows];
+		int row = 0;
+		for (int i=0; i<data.length; i++) {
+			RowBuffer buffer = buffers.get(i);
+			System.arraycopy(buffer.rowLengths, 0, rowLengths, row, buffer.rows);
+			row += buffer.rows;
+			data[i] = ByteBuffer.wrap(buffer.data, 0, buffer.size);
+		}
+		writeRows(data, rowLengths);
+	}
 
-		//write row number
-		int comp = 0;
-		if (row>127) {
-			comp = row/128 - 128;			
-			write(comp);	
-		} 
-		comp = row % 128;
-		write(comp); 
+	/**
+	 * Copy compressed rows from previous version of the file.
+	 */
+	private void copyRows(int first, int rows) throws IOException {
+		int[] rowLengths = new int[rows];
+		for (int r=0; r<rows; r++) {
+			rowLengths[r] = (int) (previous.getRowEnd(first + r) - previous.getRowOffset(first + r));
+		}
+		writeRows(new ByteBuffer[] { previous.getRows(first, rows) }, rowLengths);
+	}
 
+	/**
+	 * Compute offsets of the rows (prefix sum of their lengths) and write the data.
+	 */
+	private void writeRows(ByteBuffer[] data, int[] rowLengths) throws IOException {
+		long start = Stats.start();
+		long position = outputOffset;
+		for (int length : rowLengths) {
+			lineOffsets.add(position);
+			position += length;
+		}
 
-		int occurences = 0;
-		int x=0;
-		int currentColor = reduceToPalette(image.getRGB(x, row));
-		if (currentColor == 0) {
-			throw new RuntimeException("Color not found");
+		FileChannel channel = output.getChannel();
+		while (data.length > 0 && data[data.length-1].hasRemaining()) {
+			channel.write(data);
 		}
-		write(currentColor+128);
+		Stats.end(Stage.WRITE, start, position - outputOffset, 0);
+		outputOffset = position;
+	}
+
+	/**
+	 * Compress rows [first, first+rows) of the current block, splitting the range until 
+	 * {@link #TASK_ROWS} are left.
+	 */
+	private class CompressTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
 
-		while (x<image.getWidth()) {			
+		private byte[] indices;
+		private int blockStart;
+		private int first;
+		private int rows;
 
-			int indexedColor = reduceToPalette(image.getRGB(x, row));
-			
-			if (indexedColor != currentColor) {
+		private CompressTask left, right;
+		private RowBuffer result;
 
-				//write how many additional occurences has previously selected color				
-				writeColorOccurences(occurences - 1);
-				occurences = 0;
+		CompressTask(byte[] indices, int blockStart, int first, int rows) {
+			this.indices = indices;
+			this.blockStart = blockStart;
+			this.first = first;
+			this.rows = rows;
+		}
 
-				//write new color to be counted
-				currentColor = indexedColor;
-				int b = currentColor+128;
-				write(b);	
+		@Override
+		protected void compute() {
+			if (rows <= TASK_ROWS) {
+				long start = Stats.start();
+				int width = image.getWidth();
+				result = new RowBuffer(rows, width);
+				for (int r=0; r<rows; r++) {
+					compressRow(blockStart + first + r, indices, (first + r) * width, result);
+				}
+				Stats.end(Stage.ENCODE, start, result.size, (long) rows * width);
+				Stats.count("rle.runs", result.runs);
+				return;
 			}
-			x++;
-			occurences++;			
+			int half = rows / 2;
+			left = new CompressTask(indices, blockStart, first, half);
+			right = new CompressTask(indices, blockStart, first + half, rows - half);
+			invokeAll(left, right);
 		}
-		writeColorOccurences(occurences-1);		
 
-		//write end of "row"
-		write(0);
+		/** add buffers of all rows in row order */
+		void collect(List<RowBuffer> buffers) {
+			if (result != null) {
+				buffers.add(result);
+			} else {
+				left.collect(buffers);
+				right.collect(buffers);
+			}
+		}
 	}
 
+	void compressRow(int row, byte[] rowIndices, int start, RowBuffer out) {		
 
+		//write row number
+		int comp = 0;
+		if (row>127) {
+			comp = row/128 - 128;			
+			out.write(comp);	
+		} 
+		comp = row % 128;
+		out.write(comp); 
 
-	/**
-	 * Return index in the palette of the color that is "close" to the color given as input parameter
-	 * @param rgb
-	 * @return
-	 */
-	private int reduceToPalette(int rgb) {
-
-		int blue = (rgb & 0xff);
-		int green = ((rgb & 0xff00) >> 8);
-		int red = ((rgb & 0xff0000) >> 16);
 
-		int idx = 1;
-		double minDist = 100;
+		int end = start + image.getWidth();
 
-		for (int i=0; i<palette.size();i++) {
-			Color c= palette.get(i);
-			double dist = Math.sqrt(Math.pow((c.getRed()-red),2) + Math.pow((c.getGreen()-green),2) + Math.pow((c.getBlue()-blue),2));					
-			if (dist < minDist) {
-				minDist = dist;
-				idx = i+1;
+		int x = start;
+		while (x < end) {
+			byte color = rowIndices[x];
+			if (color == 0) {
+				throw new RuntimeException("Color not found");
+			}
+			int runStart = x++;
+			while (x < end && rowIndices[x] == color) {
+				x++;
 			}
+
+			//write color and how many additional occurences it has
+			out.write((color & 0xFF) + 128);
+			writeColorOccurences(x - runStart - 1, out);
 		}
 
-		return idx;
+		//write end of "row"
+		out.write(0);
+		out.endRow();
 	}
 
 
-	private void write(int b) throws IOException {		
-		output.write(b);
-		outputOffset++;
+
+	private void write(byte[] bytes) throws IOException {		
+		output.write(bytes);
+		outputOffset += bytes.length;
 	}
 	
-	private void writeColorOccurences(int occurences) throws IOException {
+	private void writeColorOccurences(int occurences, RowBuffer out) {
+		out.runs++;
 		int occComp = 0;
 		if (occurences>127) {
 			occComp = occurences/128 - 128;			
-			write(occComp);
+			out.write(occComp);
 		} 
 		occComp = occurences % 128;
-		write(occComp);
+		out.write(occComp);
+	}
+
+
+	/**
+	 * Compressed bytes of consecutive rows.
+	 */
+	static class RowBuffer {
+		byte[] data;
+		int size;
+
+		int[] rowLengths;
+		int rows;
+		private int rowStart;
+
+		/** number of runs written */
+		int runs;
+
+		RowBuffer(int maxRows, int width) {
+			data = new byte[maxRows * (width / 8 + 16)];
+			rowLengths = new int[maxRows];
+		}
+
+		void write(int b) {
+			if (size == data.length) {
+				byte[] grown = new byte[data.length * 2];
+				System.arraycopy(data, 0, grown, 0, size);
+				data = grown;
+			}
+			data[size++] = (byte) b;
+		}
+
+		void endRow() {
+			rowLengths[rows++] = size - rowStart;
+			rowStart = size;
+		}
 	}
-	
 
 }
@@ -0,0 +1,39 @@
+package org.dynia.seamap.slipp;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Raster source backed by a complete image held in memory.
+ */
+public class ImageRasterSource implements RasterSource {
+
+	private BufferedImage image;
+
+	// ARGB pixels of the rows currently mapped
+	private int[] rgb = new int[0];
+
+	public ImageRasterSource(BufferedImage image) {
+		this.image = image;
+	}
+
+	@Override
+	public int getWidth() {
+		return image.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return image.getHeight();
+	}
+
+	@Override
+	public void readRows(int y, int rows, byte[] indices, PaletteLookup palette) {
+		int width = image.getWidth();
+		if (rgb.length < width * rows) {
+			rgb = new int[width * rows];
+		}
+		image.getRGB(0, y, width, rows, rgb, 0, width);
+		palette.indexOf(rgb, 0, width, indices, 0, width, width, rows);
+	}
+
+}
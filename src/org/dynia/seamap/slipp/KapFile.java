@@ -1,14 +1,15 @@
 package org.dynia.seamap.slipp;
 import java.awt.Color;
-import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -34,8 +35,12 @@ public class KapFile {
 	
 	private String scale;
 
+	private String chartFormat = "Overview";
+
 	List<Color> palette; 
 
+	PaletteLookup paletteLookup;
+
 	FileOutputStream output;
 	private Long outputOffset;
 
@@ -48,7 +53,10 @@ public class KapFile {
 
 	File kapFile = null;
 
-	BufferedImage image = null;
+	RasterSource image = null;
+
+	// bands of 256 rows to compress again, null for full build
+	private BitSet dirtyBands = null;
 
 
 	public KapFile(String rootPath, String defFile, String title, Double dpi) throws IOException {
@@ -126,6 +134,19 @@ public class KapFile {
 		}
 
 		br.close();
+
+		paletteLookup = PaletteLookup.forPalette(palette, f);
+	}
+
+	/**
+	 * Use generated palette (e.g. from {@link OctreeQuantizer}) instead of reference_palette.txt. 
+	 * Every pixel is mapped to the nearest palette entry.
+	 * 
+	 * @param palette up to 127 entries, written to RGB header records
+	 */
+	public void setPalette(List<Color> palette) {
+		this.palette = palette;
+		this.paletteLookup = PaletteLookup.nearest(palette);
 	}
 
 	// read image 
@@ -135,30 +156,123 @@ public class KapFile {
 		File f = new File(rootPath + pngFile + ".png");		
 
 		System.out.println("Reading map from ["+f.getAbsolutePath()+"]");
-		image = ImageIO.read(f);
+		image = new ImageRasterSource(ImageIO.read(f));
 
 		System.out.println("Image ["+image.getWidth()+"x"+image.getHeight()+"] ");
 
 	}
 
+	/**
+	 * Use given raster instead of reading the merged image file (see {@link #parseInputSlippy()}).
+	 * @param raster
+	 */
+	public void setRaster(RasterSource raster) {
+		image = raster;
 
-	public void dump(String homeOut) throws IOException {
-		kapFile = new File(homeOut + "/"+title+"_L" + mapID + ".kap"); 
+		System.out.println("Streaming map ["+image.getWidth()+"x"+image.getHeight()+"] ");
+	}
 
-		kapFile.getParentFile().mkdirs();
 
-		output = new FileOutputStream(kapFile);
-		outputOffset = 0L;
+	/**
+	 * @return scale read from the definition file (e.g. 25000 means 1:25000)
+	 */
+	public double getScale() {
+		return Double.parseDouble(scale.trim());
+	}
 
-		System.out.println("* Write header");
-		dumpHeader();
+	/**
+	 * @param chartFormat CHF header value (default Overview)
+	 */
+	public void setChartFormat(String chartFormat) {
+		this.chartFormat = chartFormat;
+	}
 
-		System.out.println("* Compress image and write");
-		ImageCompress compress = new ImageCompress(image, palette, output);
-		compress.comressImage(outputOffset);
+	/**
+	 * Chart format by scale, following the usual scale bands of nautical charts.
+	 */
+	public static String getChartFormat(double scale) {
+		if (scale > 600000) {
+			return "Overview";
+		} else if (scale > 150000) {
+			return "General";
+		} else if (scale > 50000) {
+			return "Coastal";
+		} else if (scale > 20000) {
+			return "Approach";
+		} else if (scale > 5000) {
+			return "Harbour";
+		}
+		return "Berthing";
+	}
+
+	/**
+	 * @return file written by {@link #dump(String)}
+	 */
+	public File getOutputFile(String homeOut) {
+		return new File(homeOut + "/"+title+"_L" + mapID + ".kap"); 
+	}
 
-		output.flush();
-		output.close();
+	/**
+	 * Rebuild existing KAP file incrementally: only given bands (256 rows each) are compressed again, 
+	 * all other rows are copied from the existing file. A full build is done if there is no 
+	 * existing file or if its raster size or palette differ.
+	 * 
+	 * @param dirtyBands
+	 */
+	public void setIncremental(BitSet dirtyBands) {
+		this.dirtyBands = dirtyBands;
+	}
+
+	public void dump(String homeOut) throws IOException {
+		kapFile = getOutputFile(homeOut); 
+
+		kapFile.getParentFile().mkdirs();
+
+		KapReader previous = null;
+		if (dirtyBands != null && kapFile.exists()) {
+			// read into memory, the file is replaced (or truncated) afterwards
+			previous = new KapReader(kapFile, true);
+			if (previous.getWidth() != image.getWidth() || previous.getHeight() != image.getHeight() || !previous.getPalette().equals(palette)) {
+				System.out.println("* Previous version not compatible, full rebuild");
+				previous.close();
+				previous = null;
+			}
+		}
+		File target = previous == null ? kapFile : new File(kapFile.getPath() + ".tmp");
+
+		boolean complete = false;
+		try {
+			output = new FileOutputStream(target);
+			outputOffset = 0L;
+			try {
+				System.out.println("* Write header");
+				dumpHeader();
+
+				System.out.println("* Compress image and write");
+				ImageCompress compress = new ImageCompress(image, paletteLookup, output);
+				if (previous != null) {
+					compress.setPrevious(previous, dirtyBands);
+				}
+				compress.comressImage(outputOffset);
+
+				output.flush();
+			} finally {
+				output.close();
+			}
+			if (previous != null) {
+				previous.close();
+				Files.move(target.toPath(), kapFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			complete = true;
+		} finally {
+			if (previous != null) {
+				previous.close();
+			}
+			if (!complete) {
+				// no partial file is left
+				Files.deleteIfExists(target.toPath());
+			}
+		}
 	
 		System.out.println("* Done.");
 	}
@@ -184,7 +298,7 @@ public class KapFile {
 		writeHeaderLine( "CHT", "NA="+ title +",NU="+ mapID + "");
 
 		// CHF Chart format (e.g. Overview, General, Coastal, Approach, River, Harbour or Berthing)
-		writeHeaderLine( "CHF", "Overview");
+		writeHeaderLine( "CHF", chartFormat);
 
 		
 		
@@ -340,31 +454,39 @@ public class KapFile {
 
 
 	public void verify() throws IOException {
+		verify(false);
+	}
+
+	/**
+	 * Check the written file: line index and every row are decoded (see {@link KapReader#verify}).
+	 * 
+	 * @param comparePixels also compare decoded rows with the source raster (reads the raster again)
+	 * @throws IOException if the file is not valid
+	 */
+	public void verify(boolean comparePixels) throws IOException {
 		
 
 		System.out.println("Verification report");
 		
-		FileInputStream fileInputStream = null;
-		byte[] bFile = new byte[(int) kapFile.length()];
+		KapReader reader = new KapReader(kapFile);
+		try {
+			System.out.println("File size ["+kapFile.length()+"]");
 
-		//convert file into array of bytes
-		fileInputStream = new FileInputStream(kapFile);
-		fileInputStream.read(bFile);
-		fileInputStream.close();
-		
-		System.out.println("File size ["+kapFile.length()+"]");
-		
-		Integer offset = 0;
-		
-		// FIND START OF BINARY SECTION (last bytes of header section are "26" and "0")		
-		for (; offset < bFile.length; offset++)
-		{				
-			if ((byte) bFile[offset] == 26 && (byte) bFile[offset+1] == 0) break;
+			long offset = reader.getDataOffset();
+			System.out.println("\tPosition ["+offset+", 0x"+Long.toHexString(offset)+"] (start)");
+
+			if (reader.getWidth() != image.getWidth() || reader.getHeight() != image.getHeight()) {
+				throw new IOException("Raster size ["+reader.getWidth()+"x"+reader.getHeight()+"] in "+kapFile+" differs from image");
+			}
+
+			reader.verify(comparePixels ? image : null, paletteLookup);
+
+			offset = reader.getIndexOffset();
+			System.out.println("\tPosition ["+offset+", 0x"+Long.toHexString(offset)+"] (line index)");
+			System.out.println("\tVerified ["+reader.getHeight()+"] rows" + (comparePixels ? " and pixels" : ""));
+		} finally {
+			reader.close();
 		}
-		offset += 2;
-		
-		System.out.println("\tPosition ["+offset+", 0x"+Long.toHexString(offset)+"] (start)");
-		
 	}
 
 
@@ -0,0 +1,354 @@
+package org.dynia.seamap.slipp;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+/**
+ * Memory-mapped access to an existing KAP file: text header, line index and compressed rows.
+ * Rows are decoded on demand, so any row can be read without touching the others.
+ * 
+ * A file that is replaced afterwards is read into memory instead (see {@link #KapReader(File, boolean)}).
+ */
+public class KapReader {
+
+	private File kapFile;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long fileSize;
+
+	/** file read into memory instead of mapped */
+	private boolean load;
+
+	/** mapping (or content) of the whole file, null if the file is too big for a single buffer */
+	private ByteBuffer content;
+
+	private List<String> headerLines = new ArrayList<>();
+	private List<Color> palette = new ArrayList<>();
+
+	private int width = -1;
+	private int height = -1;
+
+	/** position of the first byte after the header (color depth) */
+	private long dataOffset;
+
+	/** position of the line index */
+	private long indexOffset;
+
+	public KapReader(File kapFile) throws IOException {
+		this(kapFile, false);
+	}
+
+	/**
+	 * @param kapFile
+	 * @param load read the file into memory instead of mapping it: a mapping is released only by 
+	 * the garbage collector and keeps the file from being replaced (e.g. on Windows) after {@link #close()}
+	 */
+	public KapReader(File kapFile, boolean load) throws IOException {
+		this.kapFile = kapFile;
+		this.load = load;
+		this.raf = new RandomAccessFile(kapFile, "r");
+		this.channel = raf.getChannel();
+		try {
+			this.fileSize = channel.size();
+			if (fileSize <= Integer.MAX_VALUE) {
+				content = load ? read(0, (int) fileSize) : channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+			}
+
+			parseHeader();
+
+			if (width <= 0 || height <= 0) {
+				throw new IOException("No raster size (BSB/RA) in " + kapFile);
+			}
+			indexOffset = fileSize - 4L * (height + 1);
+			if (indexOffset < dataOffset + 1) {
+				throw new IOException("File too short for line index: " + kapFile);
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private void parseHeader() throws IOException {
+		ByteBuffer buffer = slice(0, (int) Math.min(fileSize, 1 << 20));
+
+		StringBuilder line = new StringBuilder();
+		int pos = 0;
+		while (true) {
+			if (pos + 1 >= buffer.limit()) {
+				throw new IOException("Header terminator not found in " + kapFile);
+			}
+			int b = buffer.get(pos) & 0xFF;
+			if (b == 26 && buffer.get(pos+1) == 0) {
+				break;
+			}
+			if (b == '\n') {
+				addHeaderLine(line.toString());
+				line.setLength(0);
+			} else if (b != '\r') {
+				line.append((char) b);
+			}
+			pos++;
+		}
+		addHeaderLine(line.toString());
+		dataOffset = pos + 2;
+
+		for (String l : headerLines) {
+			if (l.startsWith("BSB/")) {
+				int ra = l.indexOf("RA=");
+				if (ra >= 0) {
+					StringTokenizer st = new StringTokenizer(l.substring(ra + 3), ",");
+					width = Integer.parseInt(st.nextToken().trim());
+					height = Integer.parseInt(st.nextToken().trim());
+				}
+			} else if (l.startsWith("RGB/")) {
+				StringTokenizer st = new StringTokenizer(l.substring(4), ",");
+				st.nextToken();
+				int r = Integer.parseInt(st.nextToken().trim());
+				int g = Integer.parseInt(st.nextToken().trim());
+				int b = Integer.parseInt(st.nextToken().trim());
+				palette.add(new Color(r, g, b));
+			}
+		}
+	}
+
+	private void addHeaderLine(String line) {
+		if (line.startsWith(" ") && !headerLines.isEmpty()) {
+			// continuation of previous record
+			int last = headerLines.size() - 1;
+			headerLines.set(last, headerLines.get(last) + "," + line.trim());
+		} else if (!line.isEmpty()) {
+			headerLines.add(line);
+		}
+	}
+
+	public File getFile() {
+		return kapFile;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return palette entries of the RGB header records (entry 0 has index 1)
+	 */
+	public List<Color> getPalette() {
+		return palette;
+	}
+
+	public List<String> getHeaderLines() {
+		return headerLines;
+	}
+
+	/**
+	 * @return offset of given row as stored in the line index
+	 */
+	public long getRowOffset(int row) throws IOException {
+		return slice(indexOffset + 4L * (row + 1), 4).getInt() & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @return end of given row (start of next row or of the line index)
+	 */
+	public long getRowEnd(int row) throws IOException {
+		return row + 1 < height ? getRowOffset(row + 1) : indexOffset;
+	}
+
+	/**
+	 * @return compressed bytes of rows [first, first+rows)
+	 */
+	public ByteBuffer getRows(int first, int rows) throws IOException {
+		long start = getRowOffset(first);
+		long end = getRowEnd(first + rows - 1);
+		if (start < dataOffset || end > indexOffset || end < start) {
+			throw new IOException("Invalid line index for rows ["+first+", "+(first+rows)+") in " + kapFile);
+		}
+		return slice(start, (int) (end - start));
+	}
+
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	public long getIndexOffset() {
+		return indexOffset;
+	}
+
+	/**
+	 * Decode single row into palette indices.
+	 * 
+	 * @param row
+	 * @param indices target, at least width long
+	 * @return row number stored in the row
+	 * @throws IOException if the row data is malformed
+	 */
+	public int decodeRow(int row, byte[] indices) throws IOException {
+		ByteBuffer data = getRows(row, 1);
+
+		int rowNumber = readNumber(data, row);
+
+		int x = 0;
+		while (true) {
+			if (!data.hasRemaining()) {
+				throw new IOException("Row ["+row+"] not terminated");
+			}
+			int b = data.get() & 0xFF;
+			if (b == 0) {
+				break;
+			}
+			// color depth 7: color in lower bits, count in following bytes
+			int color = b & 0x7F;
+			int count = (b & 0x80) != 0 ? readNumber(data, row) : 0;
+			int end = x + count + 1;
+			if (end > width) {
+				throw new IOException("Row ["+row+"] longer than ["+width+"] pixels");
+			}
+			while (x < end) {
+				indices[x++] = (byte) color;
+			}
+		}
+		if (x != width) {
+			throw new IOException("Row ["+row+"] has ["+x+"] pixels, expected ["+width+"]");
+		}
+		if (data.hasRemaining()) {
+			throw new IOException("Row ["+row+"] has ["+data.remaining()+"] bytes after end of row");
+		}
+		return rowNumber;
+	}
+
+	/**
+	 * Check line index and decode all rows (in parallel). If a source raster is given, the decoded 
+	 * pixels are also compared with the palette indices of the source pixels.
+	 * 
+	 * @param source raster the file was created from (optional)
+	 * @param lookup palette mapping used to create the file (required if source is given)
+	 * @throws IOException describing the first problem found
+	 */
+	public void verify(RasterSource source, PaletteLookup lookup) throws IOException {
+
+		// line index: first entry is 0, rows follow each other
+		if (slice(indexOffset, 4).getInt() != 0) {
+			throw new IOException("First entry of line index is not 0");
+		}
+		long expected = dataOffset + 1;
+		for (int row=0; row<height; row++) {
+			long offset = getRowOffset(row);
+			if (offset != expected) {
+				throw new IOException("Line index of row ["+row+"] is ["+offset+"], expected ["+expected+"]");
+			}
+			expected = getRowEnd(row);
+			if (expected <= offset) {
+				throw new IOException("Row ["+row+"] is empty");
+			}
+		}
+
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicReference<String> firstError = new AtomicReference<>();
+		final ThreadLocal<byte[]> decoded = ThreadLocal.withInitial(() -> new byte[width]);
+
+		int blockRows = source == null ? height : 256;
+		byte[] sourceIndices = source == null ? null : new byte[width * Math.min(blockRows, height)];
+
+		for (int y=0; y<height; y+=blockRows) {
+			final int first = y;
+			int rows = Math.min(blockRows, height - y);
+			if (source != null) {
+				source.readRows(y, rows, sourceIndices, lookup);
+			}
+			IntStream.range(first, first + rows).parallel().forEach(row -> {
+				try {
+					byte[] indices = decoded.get();
+					int rowNumber = decodeRow(row, indices);
+					if (rowNumber != row) {
+						throw new IOException("Row ["+row+"] is numbered ["+rowNumber+"]");
+					}
+					for (int x=0; x<width; x++) {
+						if (indices[x] < 1 || indices[x] > palette.size()) {
+							throw new IOException("Row ["+row+"] uses color ["+indices[x]+"] not in palette");
+						}
+					}
+					if (sourceIndices != null) {
+						int start = (row - first) * width;
+						for (int x=0; x<width; x++) {
+							if (indices[x] != sourceIndices[start + x]) {
+								throw new IOException("Row ["+row+"] differs from source at x=["+x+"]");
+							}
+						}
+					}
+				} catch (IOException e) {
+					errors.incrementAndGet();
+					firstError.compareAndSet(null, e.getMessage());
+				}
+			});
+		}
+
+		if (errors.get() > 0) {
+			throw new IOException("Verification of "+kapFile+" failed for ["+errors.get()+"] rows, first: " + firstError.get());
+		}
+	}
+
+	/**
+	 * Read variable length number (7 bits per byte, highest bit marks continuation).
+	 */
+	private static int readNumber(ByteBuffer data, int row) throws IOException {
+		int value = 0;
+		while (true) {
+			if (!data.hasRemaining()) {
+				throw new IOException("Row ["+row+"] truncated");
+			}
+			int b = data.get() & 0xFF;
+			value = (value << 7) | (b & 0x7F);
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	ByteBuffer slice(long offset, int length) throws IOException {
+		if (content != null) {
+			ByteBuffer b = content.duplicate();
+			b.position((int) offset);
+			b.limit((int) offset + length);
+			return b.slice();
+		}
+		if (load) {
+			return read(offset, length);
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+
+	/**
+	 * Read bytes into a new buffer (positional reads, safe for parallel use).
+	 */
+	private ByteBuffer read(long offset, int length) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(length);
+		while (b.hasRemaining()) {
+			if (channel.read(b, offset + b.position()) < 0) {
+				throw new IOException("Unexpected end of file " + kapFile);
+			}
+		}
+		b.flip();
+		return b;
+	}
+
+	public void close() throws IOException {
+		raf.close();
+	}
+
+}
@@ -0,0 +1,177 @@
+package org.dynia.seamap.slipp;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Octree color quantizer creating a palette of up to 127 colors (max. for KAP files).
+ * 
+ * Colors are first collected into a histogram of the octree leaves (6 bits per channel). 
+ * Histograms can be filled in parallel (one per thread) and merged afterwards. The palette is 
+ * built by inserting the histogram cells into the octree and reducing the nodes with the 
+ * smallest pixel counts, deepest level first, until the number of leaves fits.
+ */
+public class OctreeQuantizer {
+
+	/** max. number of colors in a KAP palette (index 0 is not used) */
+	public static final int MAX_COLORS = 127;
+
+	private static final int DEPTH = 6;
+	private static final int CELLS = 1 << (3 * DEPTH);
+
+	private int[] count = new int[CELLS];
+	private long[] red = new long[CELLS];
+	private long[] green = new long[CELLS];
+	private long[] blue = new long[CELLS];
+
+	private long pixels;
+
+	/**
+	 * Add pixels to the histogram.
+	 * 
+	 * @param argb pixels (alpha is ignored)
+	 * @param offset first pixel
+	 * @param length number of pixels
+	 * @param step add only every n-th pixel
+	 */
+	public void add(int[] argb, int offset, int length, int step) {
+		for (int i=offset; i<offset+length; i+=step) {
+			int rgb = argb[i];
+			int r = (rgb >> 16) & 0xFF;
+			int g = (rgb >> 8) & 0xFF;
+			int b = rgb & 0xFF;
+			int cell = ((r >> 2) << 12) | ((g >> 2) << 6) | (b >> 2);
+			count[cell]++;
+			red[cell] += r;
+			green[cell] += g;
+			blue[cell] += b;
+			pixels++;
+		}
+	}
+
+	/**
+	 * Add histogram of other quantizer to this one.
+	 */
+	public void merge(OctreeQuantizer other) {
+		for (int i=0; i<CELLS; i++) {
+			count[i] += other.count[i];
+			red[i] += other.red[i];
+			green[i] += other.green[i];
+			blue[i] += other.blue[i];
+		}
+		pixels += other.pixels;
+	}
+
+	public long getPixels() {
+		return pixels;
+	}
+
+	private static class Node {
+		int level;
+		long count, red, green, blue;
+		Node[] children;
+
+		Node(int level) {
+			this.level = level;
+		}
+
+		boolean isLeaf() {
+			return children == null;
+		}
+	}
+
+	/**
+	 * @param maxColors max. number of palette entries (at most {@link #MAX_COLORS})
+	 * @return palette, most frequent colors first
+	 */
+	public List<Color> buildPalette(int maxColors) {
+		maxColors = Math.max(1, Math.min(MAX_COLORS, maxColors));
+
+		// reducible nodes of each level, smallest count first
+		List<PriorityQueue<Node>> reducible = new ArrayList<>();
+		for (int l=0; l<DEPTH; l++) {
+			reducible.add(new PriorityQueue<>(Comparator.comparingLong((Node n) -> n.count)));
+		}
+
+		Node root = new Node(0);
+		int leaves = 0;
+		for (int cell=0; cell<CELLS; cell++) {
+			if (count[cell] == 0) {
+				continue;
+			}
+			Node node = root;
+			for (int l=0; l<DEPTH; l++) {
+				add(node, cell);
+				if (node.children == null) {
+					node.children = new Node[8];
+					reducible.get(l).add(node);
+				}
+				int shift = DEPTH - 1 - l;
+				int child = (((cell >> (12 + shift)) & 1) << 2) | (((cell >> (6 + shift)) & 1) << 1) | ((cell >> shift) & 1);
+				if (node.children[child] == null) {
+					node.children[child] = new Node(l + 1);
+				}
+				node = node.children[child];
+			}
+			add(node, cell);
+			leaves++;
+		}
+
+		// queues are filled with final counts only after all cells are inserted
+		for (PriorityQueue<Node> queue : reducible) {
+			List<Node> nodes = new ArrayList<>(queue);
+			queue.clear();
+			queue.addAll(nodes);
+		}
+
+		for (int l=DEPTH-1; l>=0 && leaves>maxColors; l--) {
+			PriorityQueue<Node> queue = reducible.get(l);
+			while (leaves > maxColors && !queue.isEmpty()) {
+				Node node = queue.poll();
+				int children = 0;
+				for (Node c : node.children) {
+					if (c != null) {
+						children++;
+					}
+				}
+				node.children = null;
+				leaves -= children - 1;
+			}
+		}
+
+		List<Node> result = new ArrayList<>();
+		collectLeaves(root, result);
+		result.sort(Comparator.comparingLong((Node n) -> -n.count));
+
+		List<Color> palette = new ArrayList<>();
+		for (Node n : result) {
+			palette.add(new Color((int) (n.red / n.count), (int) (n.green / n.count), (int) (n.blue / n.count)));
+		}
+		return palette;
+	}
+
+	private void add(Node node, int cell) {
+		node.count += count[cell];
+		node.red += red[cell];
+		node.green += green[cell];
+		node.blue += blue[cell];
+	}
+
+	private static void collectLeaves(Node node, List<Node> leaves) {
+		if (node.isLeaf()) {
+			if (node.count > 0) {
+				leaves.add(node);
+			}
+			return;
+		}
+		for (Node c : node.children) {
+			if (c != null) {
+				collectLeaves(c, leaves);
+			}
+		}
+	}
+
+}
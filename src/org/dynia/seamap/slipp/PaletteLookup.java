@@ -0,0 +1,281 @@
+package org.dynia.seamap.slipp;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+import org.dynia.seamap.stats.Stats;
+import org.dynia.seamap.stats.Stats.Stage;
+
+/**
+ * Dense RGB to palette index table (one byte for each of the 2^24 colors).
+ * 
+ * The table gives exactly the same result as the nearest-match rule: the first palette entry 
+ * with the smallest euclidean distance wins, colors that are 100 or more away from every entry 
+ * are mapped to index 1. Tables are built once per palette and kept in memory; when a palette 
+ * file is given, the table is also stored next to it (&lt;palette&gt;.lut) and memory-mapped on 
+ * later runs.
+ * 
+ * Generated palettes (see {@link OctreeQuantizer}) use {@link #nearest(List)}, which maps every 
+ * color to the nearest entry without distance limit. Every region has its own generated palette, 
+ * so only the most recently used of these tables are kept (a long running process would 
+ * otherwise keep 16 MB per region).
+ */
+public class PaletteLookup {
+
+	private static final int MAGIC = 0x4C555431; // "LUT1"
+	private static final int HEADER_SIZE = 12;
+	private static final int TABLE_SIZE = 1 << 24;
+
+	/** colors with distance of 100 or more are not matched to any entry */
+	private static final int MAX_DIST_SQUARE = 100 * 100;
+
+	private static final Map<List<Color>, PaletteLookup> lookups = new ConcurrentHashMap<>();
+
+	/** max. number of nearest match tables kept in memory */
+	private static final int MAX_NEAREST_TABLES = 4;
+
+	// least recently used first
+	private static final LinkedHashMap<List<Color>, PaletteLookup> nearestLookups = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final ByteBuffer table;
+
+	private PaletteLookup(ByteBuffer table) {
+		this.table = table;
+	}
+
+	/**
+	 * Return lookup table for given palette, build it if not yet available.
+	 * 
+	 * @param palette palette entries (entry 0 has index 1)
+	 * @param paletteFile file the palette was read from, used to persist the table (may be null)
+	 */
+	public static PaletteLookup forPalette(List<Color> palette, File paletteFile) throws IOException {
+		List<Color> key = new ArrayList<>(palette);
+		PaletteLookup lookup = lookups.get(key);
+		if (lookup == null) {
+			synchronized (lookups) {
+				lookup = lookups.get(key);
+				if (lookup == null) {
+					lookup = load(key, paletteFile);
+					lookups.put(key, lookup);
+				}
+			}
+		}
+		return lookup;
+	}
+
+	/**
+	 * Return lookup table mapping every color to the nearest palette entry (no fallback to index 1).
+	 * 
+	 * @param palette palette entries (entry 0 has index 1)
+	 */
+	public static PaletteLookup nearest(List<Color> palette) {
+		List<Color> key = new ArrayList<>(palette);
+		synchronized (nearestLookups) {
+			PaletteLookup lookup = nearestLookups.get(key);
+			if (lookup == null) {
+				System.out.println("Building palette table for ["+key.size()+"] colors (nearest match)");
+				lookup = new PaletteLookup(ByteBuffer.wrap(build(key, Integer.MAX_VALUE)));
+				nearestLookups.put(key, lookup);
+				Iterator<PaletteLookup> it = nearestLookups.values().iterator();
+				while (nearestLookups.size() > MAX_NEAREST_TABLES) {
+					it.next();
+					it.remove();
+				}
+			}
+			return lookup;
+		}
+	}
+
+	/**
+	 * Return index in the palette of the color that is "close" to the color given as input parameter
+	 * @param rgb color, alpha is ignored
+	 * @return palette index (1..n)
+	 */
+	public int indexOf(int rgb) {
+		return table.get(rgb & 0xFFFFFF) & 0xFF;
+	}
+
+	/**
+	 * Map a block of pixels to palette indices (see {@link #indexOf(int)}). Map tiles use few colors,
+	 * so runs of the same color and the last 256 colors seen (direct mapped) are not looked up again.
+	 *
+	 * @param rgb source pixels
+	 * @param offset first source pixel
+	 * @param scanline source scanline stride
+	 * @param indices target
+	 * @param indexOffset first target index
+	 * @param indexScanline target scanline stride
+	 * @param width pixels per row
+	 * @param rows number of rows
+	 */
+	public void indexOf(int[] rgb, int offset, int scanline, byte[] indices, int indexOffset, int indexScanline, int width, int rows) {
+		int[] colors = new int[256];
+		byte[] mapped = new byte[256];
+		int last = -1;
+		byte lastIndex = 0;
+		for (int r=0; r<rows; r++) {
+			int src = offset + r * scanline;
+			int dst = indexOffset + r * indexScanline;
+			for (int x=0; x<width; x++) {
+				int color = rgb[src + x] & 0xFFFFFF;
+				if (color != last) {
+					int slot = (color ^ (color >>> 8) ^ (color >>> 16)) & 0xFF;
+					// slots start empty (index 0 is never used)
+					if (colors[slot] != color || mapped[slot] == 0) {
+						colors[slot] = color;
+						mapped[slot] = table.get(color);
+					}
+					last = color;
+					lastIndex = mapped[slot];
+				}
+				indices[dst + x] = lastIndex;
+			}
+		}
+	}
+
+	private static PaletteLookup load(List<Color> palette, File paletteFile) throws IOException {
+		int checksum = checksum(palette);
+
+		File lutFile = paletteFile == null ? null : new File(paletteFile.getPath() + ".lut");
+		if (lutFile != null && lutFile.exists() && lutFile.length() == HEADER_SIZE + TABLE_SIZE) {
+			RandomAccessFile raf = new RandomAccessFile(lutFile, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+				if (header.getInt() == MAGIC && header.getInt() == palette.size() && header.getInt() == checksum) {
+					System.out.println("Mapping palette table from: " + lutFile.getAbsolutePath());
+					Stats.count("palette.tableMapped");
+					return new PaletteLookup(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, TABLE_SIZE));
+				}
+			} finally {
+				raf.close();
+			}
+		}
+
+		System.out.println("Building palette table for ["+palette.size()+"] colors");
+		ByteBuffer table = ByteBuffer.wrap(build(palette, MAX_DIST_SQUARE));
+
+		if (lutFile != null) {
+			try {
+				save(lutFile, palette.size(), checksum, table);
+			} catch (IOException e) {
+				System.out.println("Could not store palette table: " + e.getMessage());
+			}
+		}
+		return new PaletteLookup(table);
+	}
+
+	/**
+	 * @param maxDistSquare colors not closer than this (squared distance) to any entry get index 1
+	 */
+	static byte[] build(List<Color> palette, final int maxDistSquare) {
+		long start = Stats.start();
+		final int n = palette.size();
+		final int[] red = new int[n];
+		final int[] green = new int[n];
+		final int[] blue = new int[n];
+		// largest blue distance of each entry (to blue 0 or 255)
+		final int[] maxBlue = new int[n];
+		for (int i=0; i<n; i++) {
+			red[i] = palette.get(i).getRed();
+			green[i] = palette.get(i).getGreen();
+			blue[i] = palette.get(i).getBlue();
+			int db = Math.max(blue[i], 255 - blue[i]);
+			maxBlue[i] = db * db;
+		}
+
+		final byte[] table = new byte[TABLE_SIZE];
+
+		IntStream.range(0, 256).parallel().forEach(r -> {
+			int[] candidates = new int[n];
+			for (int g=0; g<256; g++) {
+				// no color of this row is farther than the bound from its nearest entry, entries that 
+				// are farther away in red and green (or too far away) can never match
+				int bound = Integer.MAX_VALUE;
+				for (int i=0; i<n; i++) {
+					int dr = red[i] - r;
+					int dg = green[i] - g;
+					bound = Math.min(bound, dr*dr + dg*dg + maxBlue[i]);
+				}
+				int count = 0;
+				for (int i=0; i<n; i++) {
+					int dr = red[i] - r;
+					int dg = green[i] - g;
+					int distRG = dr*dr + dg*dg;
+					if (distRG <= bound && distRG < maxDistSquare) {
+						candidates[count++] = i;
+					}
+				}
+
+				int base = (r << 16) | (g << 8);
+				for (int b=0; b<256; b++) {
+					int idx = 1;
+					int minDist = maxDistSquare;
+					for (int k=0; k<count; k++) {
+						int i = candidates[k];
+						int dr = red[i] - r;
+						int dg = green[i] - g;
+						int db = blue[i] - b;
+						int dist = dr*dr + dg*dg + db*db;
+						if (dist < minDist) {
+							minDist = dist;
+							idx = i+1;
+						}
+					}
+					table[base | b] = (byte) idx;
+				}
+			}
+		});
+
+		Stats.end(Stage.QUANTIZE, start, 0, TABLE_SIZE);
+		return table;
+	}
+
+	private static void save(File lutFile, int size, int checksum, ByteBuffer table) throws IOException {
+		File tmpFile = new File(lutFile.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(size).putInt(checksum).flip();
+			channel.write(header);
+			ByteBuffer data = table.duplicate();
+			data.clear();
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+		} finally {
+			raf.close();
+		}
+		if (!tmpFile.renameTo(lutFile)) {
+			lutFile.delete();
+			if (!tmpFile.renameTo(lutFile)) {
+				throw new IOException("Cannot rename " + tmpFile);
+			}
+		}
+	}
+
+	private static int checksum(List<Color> palette) {
+		CRC32 crc = new CRC32();
+		for (Color c : palette) {
+			crc.update(c.getRed());
+			crc.update(c.getGreen());
+			crc.update(c.getBlue());
+		}
+		return (int) crc.getValue();
+	}
+
+}
@@ -0,0 +1,25 @@
+package org.dynia.seamap.slipp;
+
+import java.io.IOException;
+
+/**
+ * Source of image rows for KAP compression. Rows are requested in ascending order.
+ */
+public interface RasterSource {
+
+	int getWidth();
+
+	int getHeight();
+
+	/**
+	 * Read rows as palette indices into given buffer (one row after another, scanline stride is the width).
+	 *
+	 * @param y first row
+	 * @param rows number of rows
+	 * @param indices target buffer, at least width*rows long
+	 * @param palette mapping of the pixels to palette indices
+	 * @throws IOException
+	 */
+	void readRows(int y, int rows, byte[] indices, PaletteLookup palette) throws IOException;
+
+}
@@ -0,0 +1,132 @@
+package org.dynia.seamap.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Log for messages that are written per tile (or more often).
+ * 
+ * Messages below the configured level are not even created (the text is passed as {@link Supplier}). 
+ * The others are queued and printed by a background thread, so workers do not wait for the console. 
+ * Call {@link #flush()} before printing something that must appear after the queued messages.
+ */
+public class Log {
+
+	public enum Level {
+		WARN, INFO, DEBUG
+	}
+
+	private static volatile Level level = Level.INFO;
+
+	/** messages queued at most, producers wait if the console is slower */
+	private static final int CAPACITY = 10000;
+
+	private static final BlockingQueue<String> queue = new LinkedBlockingQueue<>(CAPACITY);
+	private static final Object flushed = new Object();
+	private static long queued;
+	private static long printed;
+
+	static {
+		Thread writer = new Thread(Log::run, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @param name WARN, INFO or DEBUG (case is ignored)
+	 */
+	public static void setLevel(String name) {
+		level = Level.valueOf(name.trim().toUpperCase());
+	}
+
+	public static boolean isEnabled(Level l) {
+		return l.compareTo(level) <= 0;
+	}
+
+	public static void warn(Supplier<String> message) {
+		log(Level.WARN, message);
+	}
+
+	public static void info(Supplier<String> message) {
+		log(Level.INFO, message);
+	}
+
+	public static void debug(Supplier<String> message) {
+		log(Level.DEBUG, message);
+	}
+
+	public static void log(Level l, Supplier<String> message) {
+		if (!isEnabled(l)) {
+			return;
+		}
+		put((l == Level.WARN ? "WARN " : "") + message.get());
+	}
+
+	/**
+	 * Wait until all queued messages are printed.
+	 */
+	public static void flush() {
+		long target;
+		synchronized (flushed) {
+			target = queued;
+		}
+		if (target == 0) {
+			return;
+		}
+		synchronized (flushed) {
+			while (printed < target) {
+				try {
+					flushed.wait(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private static void put(String line) {
+		// counted before it is queued, so flush() also waits for messages still being put
+		synchronized (flushed) {
+			queued++;
+		}
+		try {
+			queue.put(line);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println(line);
+			synchronized (flushed) {
+				printed++;
+				flushed.notifyAll();
+			}
+		}
+	}
+
+	private static void run() {
+		List<String> batch = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch);
+			for (String line : batch) {
+				sb.append(line).append(System.lineSeparator());
+			}
+			System.out.print(sb);
+			System.out.flush();
+			synchronized (flushed) {
+				printed += batch.size();
+				flushed.notifyAll();
+			}
+			batch.clear();
+			sb.setLength(0);
+		}
+	}
+
+}
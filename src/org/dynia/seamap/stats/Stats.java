@@ -0,0 +1,216 @@
+package org.dynia.seamap.stats;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters of a run, shared by all threads.
+ * 
+ * Every stage counts the items it processed (tiles, rows, files), the time spent, bytes and pixels. 
+ * Time is summed over all threads and includes the stages called from within (merging a band decodes 
+ * and flattens its tiles), rates are computed from the wall time between the first start and the last 
+ * end of a stage. Named counters hold everything else (cache hits, run lengths, ...).
+ * 
+ * Usage:
+ * <pre>
+ * long start = Stats.start();
+ * ...
+ * Stats.end(Stage.DECODE, start, bytes, pixels);
+ * </pre>
+ */
+public class Stats {
+
+	public enum Stage {
+		DOWNLOAD, FLATTEN, MERGE, DECODE, QUANTIZE, ENCODE, WRITE;
+
+		String getName() {
+			return name().toLowerCase();
+		}
+	}
+
+	private static class Timer {
+		final LongAdder count = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder pixels = new LongAdder();
+		final LongAccumulator first = new LongAccumulator(Math::min, Long.MAX_VALUE);
+		final LongAccumulator last = new LongAccumulator(Math::max, Long.MIN_VALUE);
+	}
+
+	private static Timer[] timers;
+	private static Map<String, LongAdder> counters;
+	private static long runStart;
+	private static long runStartMillis;
+
+	static {
+		reset();
+	}
+
+	/**
+	 * Forget all values and start new run.
+	 */
+	public static synchronized void reset() {
+		Timer[] t = new Timer[Stage.values().length];
+		for (int i=0; i<t.length; i++) {
+			t[i] = new Timer();
+		}
+		timers = t;
+		counters = new ConcurrentHashMap<>();
+		runStart = System.nanoTime();
+		runStartMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return start time to be passed to {@link #end(Stage, long, long, long)}
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record one item of given stage.
+	 * @param start value returned by {@link #start()}
+	 */
+	public static void end(Stage stage, long start, long bytes, long pixels) {
+		long now = System.nanoTime();
+		Timer t = timers[stage.ordinal()];
+		t.count.increment();
+		t.nanos.add(now - start);
+		if (bytes != 0) {
+			t.bytes.add(bytes);
+		}
+		if (pixels != 0) {
+			t.pixels.add(pixels);
+		}
+		t.first.accumulate(start);
+		t.last.accumulate(now);
+	}
+
+	public static void end(Stage stage, long start) {
+		end(stage, start, 0, 0);
+	}
+
+	/**
+	 * Add to named counter.
+	 */
+	public static void count(String name, long n) {
+		counters.computeIfAbsent(name, k -> new LongAdder()).add(n);
+	}
+
+	public static void count(String name) {
+		count(name, 1);
+	}
+
+	public static long getCount(String name) {
+		LongAdder c = counters.get(name);
+		return c == null ? 0 : c.sum();
+	}
+
+	/**
+	 * Print one line per stage that was used.
+	 */
+	public static void printSummary() {
+		System.out.println("-- STATISTICS --");
+		for (Stage stage : Stage.values()) {
+			Timer t = timers[stage.ordinal()];
+			long count = t.count.sum();
+			if (count == 0) {
+				continue;
+			}
+			double wall = wallSeconds(t);
+			StringBuilder sb = new StringBuilder();
+			sb.append(stage.getName()).append(": [").append(count).append("] in [").append(t.nanos.sum() / 1000000).append(" ms]");
+			sb.append(", ").append(Math.round(count / wall)).append("/s");
+			if (t.bytes.sum() > 0) {
+				sb.append(", [").append(t.bytes.sum() / 1024).append(" kB]");
+			}
+			if (t.pixels.sum() > 0) {
+				sb.append(", ").append(Math.round(t.pixels.sum() / wall / 1000000)).append(" Mpixel/s");
+			}
+			System.out.println("\t" + sb);
+		}
+	}
+
+	/**
+	 * Write all values as JSON file.
+	 * 
+	 * @param info additional top level values (numbers or strings)
+	 * @throws IOException
+	 */
+	public static void writeReport(File file, Map<String, Object> info) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		for (Map.Entry<String, Object> e : info.entrySet()) {
+			sb.append("  ").append(quote(e.getKey())).append(": ").append(value(e.getValue())).append(",\n");
+		}
+		sb.append("  \"started\": ").append(runStartMillis).append(",\n");
+		sb.append("  \"wallMillis\": ").append((System.nanoTime() - runStart) / 1000000).append(",\n");
+
+		sb.append("  \"stages\": {");
+		String sep = "\n";
+		for (Stage stage : Stage.values()) {
+			Timer t = timers[stage.ordinal()];
+			long count = t.count.sum();
+			double wall = count == 0 ? 0 : wallSeconds(t);
+			sb.append(sep).append("    ").append(quote(stage.getName())).append(": {");
+			sb.append("\"count\": ").append(count);
+			sb.append(", \"millis\": ").append(t.nanos.sum() / 1000000);
+			sb.append(", \"wallMillis\": ").append(Math.round(wall * 1000));
+			sb.append(", \"bytes\": ").append(t.bytes.sum());
+			sb.append(", \"pixels\": ").append(t.pixels.sum());
+			sb.append(", \"perSecond\": ").append(wall == 0 ? 0 : Math.round(count / wall));
+			sb.append(", \"pixelsPerSecond\": ").append(wall == 0 ? 0 : Math.round(t.pixels.sum() / wall));
+			sb.append("}");
+			sep = ",\n";
+		}
+		sb.append("\n  },\n");
+
+		sb.append("  \"counters\": {");
+		sep = "\n";
+		for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+			sb.append(sep).append("    ").append(quote(e.getKey())).append(": ").append(e.getValue().sum());
+			sep = ",\n";
+		}
+		sb.append("\n  }\n}\n");
+
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			w.write(sb.toString());
+		}
+		System.out.println("Run report: " + file.getPath());
+	}
+
+	private static double wallSeconds(Timer t) {
+		return Math.max(1, t.last.get() - t.first.get()) / 1e9;
+	}
+
+	private static String value(Object o) {
+		if (o instanceof Number || o instanceof Boolean) {
+			return o.toString();
+		}
+		return quote(String.valueOf(o));
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+}